@@ -0,0 +1,117 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Frame;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+/**
+ * Deterministic inputs shared by the benchmarks.
+ */
+public final class BenchmarkFrames {
+
+    /**
+     * @return {@code size} random bytes, the same for every run
+     */
+    public static ByteString randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(5818).nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    /**
+     * @return a JPEG of a noisy gradient, which compresses about as well as
+     *         a camera frame does
+     */
+    public static ByteString jpeg(int width, int height) {
+        BufferedImage image =
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(5818);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 255 / (width + height)) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        ByteString.Output out = ByteString.newOutput();
+        try {
+            ImageIO.write(image, "jpeg", out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteString();
+    }
+
+    public static Frame frame(int width, int height) {
+        return Frame.newBuilder().setJpeg(jpeg(width, height))
+                .setWidth(width).setHeight(height).build();
+    }
+
+    /**
+     * @return {@code message} as the client receives it, parsed out of an
+     *         encoded packet with its bytes aliased to the packet's buffer
+     */
+    public static Any receivedPacket(Message message) {
+        ByteBuffer packet = Packets.encodePacket(message);
+        byte[] body = new byte[packet.getInt()];
+        packet.get(body);
+        try {
+            return Packets.parsePacket(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return {@code frame} as the client receives it, see
+     *         {@link #receivedPacket(Message)}
+     */
+    public static Frame received(Frame frame) {
+        try {
+            return Packets.unpack(receivedPacket(frame), Frame.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private BenchmarkFrames() {
+    }
+
+}
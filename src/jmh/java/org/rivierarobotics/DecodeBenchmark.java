@@ -0,0 +1,88 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.rivierarobotics.protos.Packet.Frame;
+
+/**
+ * JPEG decode into pooled pixel buffers, as {@link FrameDisplay} does, against
+ * a fresh {@link ImageIO} decode per frame. The JavaFX decoder needs a running
+ * toolkit, see {@link FxBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DecodeBenchmark {
+
+    @Param({ "320x240", "640x480" })
+    public String resolution;
+
+    private Frame frame;
+    private final PixelDecoder decoder = new PixelDecoder();
+    private PixelBuffer buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] size = resolution.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        frame = BenchmarkFrames
+                .received(BenchmarkFrames.frame(width, height));
+        // fail the run rather than time a decoder that can't read what the
+        // network hands it
+        if (!decoder.decode(frame, null).hasSize(width, height)) {
+            throw new IllegalStateException("Decoded the wrong size");
+        }
+    }
+
+    @Benchmark
+    public PixelBuffer pooled() throws IOException {
+        buffer = decoder.decode(frame, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public BufferedImage imageIo() throws IOException {
+        try (InputStream in = FrameDecoder.getJpegStreamFromFrame(frame)) {
+            return ImageIO.read(in);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.rivierarobotics.protos.Packet.Frame;
+
+import javafx.embed.swing.JFXPanel;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.Pane;
+import javafx.scene.shape.Line;
+
+/**
+ * The JavaFX side of showing a frame: the stock JavaFX JPEG decode the client
+ * used to do, copying decoded pixels into the shown image, and re-laying out
+ * the crosshair overlay. Needs a display to start the toolkit. The nodes are
+ * never shown, so they can be used from the benchmark thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FxBenchmark {
+
+    private Frame frame;
+    private PixelBuffer pixels;
+    private WritableImage image;
+    private ImageView imageView;
+    private Line crosshair;
+    private boolean tall;
+
+    @Setup
+    public void setup() throws Exception {
+        // starts the toolkit
+        SwingUtilities.invokeAndWait(JFXPanel::new);
+        frame = BenchmarkFrames.received(BenchmarkFrames.frame(640, 480));
+        pixels = new PixelDecoder().decode(frame, null);
+        image = new WritableImage(pixels.getWidth(), pixels.getHeight());
+
+        imageView = new ImageView(image);
+        imageView.setPreserveRatio(true);
+        FrameOverlay overlay = new FrameOverlay(imageView, new Pane());
+        crosshair = overlay.addGuideLine(0.5, 0, 0.5, 1);
+    }
+
+    @Benchmark
+    public Image decodeJavaFx() throws IOException {
+        try (InputStream in = FrameDecoder.getJpegStreamFromFrame(frame)) {
+            return new Image(in, 0, 0, true, true);
+        }
+    }
+
+    @Benchmark
+    public void showPixels() {
+        image.getPixelWriter().setPixels(0, 0, pixels.getWidth(),
+                pixels.getHeight(), PixelFormat.getByteRgbInstance(),
+                pixels.getPixels(), 0, pixels.getScanlineStride());
+    }
+
+    /**
+     * Resizes the view, as a window resize does, and reads back where the
+     * crosshair ended up.
+     */
+    @Benchmark
+    public double overlayRelayout() {
+        tall = !tall;
+        imageView.setFitHeight(tall ? 720 : 480);
+        return crosshair.getEndX() + crosshair.getEndY();
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rivierarobotics.packet.MessageDispatcher;
+import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.protos.Packet.Signal;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * The two ways a decoded packet reaches the client code: queued in a mailbox
+ * and taken out by {@link NetworkManager#nextMessageOfType(Class)}, or pushed
+ * to a handler by the {@link MessageDispatcher}. The mailbox is kept at a
+ * steady depth by putting one packet in for every one taken out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageQueueBenchmark {
+
+    @Param({ "1", "16", "64" })
+    public int queueDepth;
+
+    private final ConcurrentMap<String, Mailbox<Any>> mailboxes =
+            new ConcurrentHashMap<>();
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private Any signal;
+    private Any frame;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        signal = Any.pack(
+                Signal.newBuilder().setType(Signal.Type.SWITCH_FEED).build());
+        frame = BenchmarkFrames
+                .receivedPacket(BenchmarkFrames.frame(320, 240));
+        Mailbox<Any> mailbox = Mailbox.fifo(queueDepth);
+        for (int i = 0; i < queueDepth - 1; i++) {
+            mailbox.offer(signal);
+        }
+        mailboxes.put(Packets.typeName(Signal.class), mailbox);
+        dispatcher.addHandler(Frame.class, this::onFrame,
+                MoreExecutors.directExecutor());
+    }
+
+    private void onFrame(Frame frame) {
+        blackhole.consume(frame);
+    }
+
+    /**
+     * What {@link NetworkManager#nextMessageOfType(Class)} does for a queued
+     * message.
+     */
+    @Benchmark
+    public Signal queueAndTake() throws InvalidProtocolBufferException {
+        Mailbox<Any> in = mailboxes.get(Packets.typeName(signal));
+        in.offer(signal);
+        Mailbox<Any> out = mailboxes.get(Packets.typeName(Signal.class));
+        return Packets.unpack(out.poll(), Signal.class);
+    }
+
+    @Benchmark
+    public boolean dispatchFrame() throws InvalidProtocolBufferException {
+        return dispatcher.dispatch(frame);
+    }
+
+}
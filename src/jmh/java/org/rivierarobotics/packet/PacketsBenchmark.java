@@ -0,0 +1,157 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rivierarobotics.BenchmarkFrames;
+import org.rivierarobotics.protos.Packet.Frame;
+
+import com.google.protobuf.Any;
+
+/**
+ * Framing and parsing a frame packet, blocking and non-blocking.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PacketsBenchmark {
+
+    /**
+     * Discards everything, so only the encoding is measured.
+     */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Hands out a buffer in socket-sized chunks, like a non-blocking read.
+     */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+
+        private static final int CHUNK = 64 * 1024;
+
+        private final ByteBuffer data;
+
+        ChunkedChannel(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return 0;
+            }
+            int n = Math.min(Math.min(CHUNK, dst.remaining()),
+                    data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            data.position(data.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    /**
+     * Frame payload sizes, from a small processed frame to a large plain one.
+     */
+    @Param({ "16384", "65536", "262144" })
+    public int frameSize;
+
+    private Frame frame;
+    private byte[] encoded;
+    private final PacketReader reader = new PacketReader();
+
+    @Setup
+    public void setup() throws IOException {
+        frame = Frame.newBuilder()
+                .setJpeg(BenchmarkFrames.randomBytes(frameSize)).build();
+        ByteBuffer buffer = Packets.encodePacket(frame);
+        encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+    }
+
+    @Benchmark
+    public void writePacket() throws IOException {
+        Packets.writePacket(NULL_OUTPUT, frame);
+    }
+
+    @Benchmark
+    public ByteBuffer encodePacket() {
+        return Packets.encodePacket(frame);
+    }
+
+    @Benchmark
+    public Any readPacket() throws IOException {
+        return Packets.readPacket(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public void readChannel(Blackhole blackhole) throws IOException {
+        ChunkedChannel channel = new ChunkedChannel(ByteBuffer.wrap(encoded));
+        while (channel.data.hasRemaining()) {
+            reader.read(channel, blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public Frame readAndUnpack() throws IOException {
+        return Packets.unpack(
+                Packets.readPacket(new ByteArrayInputStream(encoded)),
+                Frame.class);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.recording;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rivierarobotics.BenchmarkFrames;
+import org.rivierarobotics.Source;
+import org.rivierarobotics.protos.Packet.Frame;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Recording throughput in frames per second, writing batches to a temp
+ * directory the way the recorder's encoding loop does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RecordingBenchmark {
+
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * How often the writer forces to disk: only on close, at the recorder's
+     * default of once a second, or after every batch.
+     */
+    @Param({ "close", "second", "batch" })
+    public String durability;
+
+    @Param({ "65536" })
+    public int frameSize;
+
+    private Path directory;
+    private Path recording;
+    private RecordingWriter writer;
+    private final List<RecordedFrame> batch = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setupBatch() {
+        ByteString jpeg = BenchmarkFrames.received(Frame.newBuilder()
+                .setJpeg(BenchmarkFrames.randomBytes(frameSize)).build())
+                .getJpeg();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new RecordedFrame(jpeg, i, i, Source.PLAIN));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void openWriter() throws IOException {
+        directory = Files.createTempDirectory("vc2017-bench");
+        recording = directory.resolve("bench" + Recordings.EXTENSION);
+        writer = new RecordingWriter(recording, durabilityPolicy());
+    }
+
+    private DurabilityPolicy durabilityPolicy() {
+        switch (durability) {
+            case "close":
+                return DurabilityPolicy.ON_CLOSE;
+            case "second":
+                return DurabilityPolicy.everyMillis(1000);
+            case "batch":
+                return DurabilityPolicy.everyFrames(BATCH_SIZE);
+            default:
+                throw new IllegalArgumentException(durability);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void writeBatch() throws IOException {
+        writer.write(batch);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteRecording() throws IOException {
+        writer.close();
+        Files.delete(recording);
+        Files.delete(Recordings.indexPath(recording));
+        Files.delete(directory);
+    }
+
+}
@@ -24,18 +24,63 @@
  */
 package org.rivierarobotics;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
 
 import org.rivierarobotics.protos.Packet.Frame;
 
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
 public class FrameDecoder {
 
+    /**
+     * Frame encodings the client can decode.
+     */
+    public static final List<Frame.Encoding> SUPPORTED_ENCODINGS =
+            ImmutableList.of(Frame.Encoding.JPEG, Frame.Encoding.DEFLATE_JPEG);
+
     /**
      * Converts a {@link Frame} to an InputStream with JPEG data.
      * 
      * @return the JPEG data stream
+     * @throws IOException
+     *             if the frame's encoding isn't supported
      */
-    public static InputStream getJpegStreamFromFrame(Frame frame) {
-        return frame.getJpeg().newInput();
+    public static InputStream getJpegStreamFromFrame(Frame frame)
+            throws IOException {
+        switch (frame.getEncoding()) {
+            case JPEG:
+                return frame.getJpeg().newInput();
+            case DEFLATE_JPEG:
+                return new InflaterInputStream(frame.getJpeg().newInput());
+            default:
+                throw unsupported(frame);
+        }
+    }
+
+    /**
+     * Gets the JPEG data of a {@link Frame}, without copying unless it has to
+     * be unwrapped.
+     * 
+     * @return the JPEG data
+     * @throws IOException
+     *             if the frame's encoding isn't supported or it doesn't
+     *             unwrap
+     */
+    public static ByteString getJpeg(Frame frame) throws IOException {
+        if (frame.getEncoding() == Frame.Encoding.JPEG) {
+            return frame.getJpeg();
+        }
+        try (InputStream in = getJpegStreamFromFrame(frame)) {
+            return ByteString.readFrom(in);
+        }
+    }
+
+    private static IOException unsupported(Frame frame) {
+        return new IOException(
+                "Unsupported frame encoding " + frame.getEncodingValue());
     }
 }
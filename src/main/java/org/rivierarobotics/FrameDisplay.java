@@ -0,0 +1,197 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Decodes frames on its own thread and shows them on the JavaFX pulse. Both
+ * hand-offs hold a single item, so a slow decoder or a busy FX thread skips
+ * stale frames instead of queueing them, and the view is never more than one
+ * frame behind the network.
+ * 
+ * <p>
+ * Frames are decoded into a small pool of pixel buffers and copied into one
+ * {@link WritableImage} that stays on the view, so a steady stream allocates
+ * nothing per frame. Buffers and image are only replaced when the stream
+ * changes resolution.
+ */
+public class FrameDisplay {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    /**
+     * One buffer being decoded into, one waiting to be shown and one spare.
+     */
+    private static final int POOL_SIZE = 3;
+
+    /**
+     * Decoded pixels and the frame they came from.
+     */
+    private static final class Decoded {
+
+        private final PixelBuffer pixels;
+        private final TimedFrame frame;
+
+        Decoded(PixelBuffer pixels, TimedFrame frame) {
+            this.pixels = pixels;
+            this.frame = frame;
+        }
+
+    }
+
+    private final ImageView imageView;
+    private final FrameLatency latency;
+    private final Mailbox<TimedFrame> nextFrame = Mailbox.latest();
+    private final PixelDecoder decoder = new PixelDecoder();
+    private final BlockingQueue<PixelBuffer> freeBuffers =
+            new ArrayBlockingQueue<>(POOL_SIZE);
+    private final AtomicReference<Decoded> decodedPixels =
+            new AtomicReference<>();
+    private WritableImage image;
+    private final ThreadLoop decodeLoop = new ThreadLoop("FrameDisplay",
+            this::decodeLoop, 0, ThreadLoop.Mode.ON_WAKE);
+    private final AnimationTimer showTimer = new AnimationTimer() {
+
+        @Override
+        public void handle(long now) {
+            showDecoded();
+        }
+    };
+    private final LongAdder shownFrames = new LongAdder();
+    private final LongAdder unshownFrames = new LongAdder();
+
+    /**
+     * @param latency
+     *            - gets the decode and display stages of every frame
+     */
+    public FrameDisplay(ImageView imageView, FrameLatency latency) {
+        this.imageView = imageView;
+        this.latency = latency;
+    }
+
+    public void start() {
+        decodeLoop.start();
+        showTimer.start();
+    }
+
+    /**
+     * Queues a frame for display, replacing any frame not yet decoded. Safe to
+     * call from any thread. Holds the frame until it's shown or dropped.
+     */
+    public void submit(TimedFrame frame) {
+        frame.hold();
+        TimedFrame replaced = nextFrame.replace(frame);
+        if (replaced != null) {
+            replaced.release();
+        }
+        decodeLoop.wake();
+    }
+
+    public long getShownFrameCount() {
+        return shownFrames.sum();
+    }
+
+    /**
+     * @return how many frames were replaced by newer ones before they could be
+     *         decoded or shown
+     */
+    public long getSkippedFrameCount() {
+        return nextFrame.getDroppedCount() + unshownFrames.sum();
+    }
+
+    private void decodeLoop() {
+        TimedFrame frame;
+        while ((frame = nextFrame.poll()) != null) {
+            PixelBuffer buffer = freeBuffers.poll();
+            try {
+                buffer = decoder.decode(frame.getFrame(), buffer);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Failed to decode frame", e);
+                recycle(buffer);
+                frame.release();
+                continue;
+            }
+            long now = System.nanoTime();
+            frame.markDecoded(now);
+            latency.record(FrameLatency.Stage.DECODE,
+                    frame.getDispatchedNanos(), now);
+            Decoded unshown =
+                    decodedPixels.getAndSet(new Decoded(buffer, frame));
+            if (unshown != null) {
+                unshownFrames.increment();
+                recycle(unshown.pixels);
+                unshown.frame.release();
+            }
+        }
+    }
+
+    private void showDecoded() {
+        Decoded decoded = decodedPixels.getAndSet(null);
+        if (decoded == null) {
+            return;
+        }
+        PixelBuffer buffer = decoded.pixels;
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        if (image == null || image.getWidth() != width
+                || image.getHeight() != height) {
+            // layout follows in this same pulse
+            image = new WritableImage(width, height);
+            imageView.setImage(image);
+        }
+        image.getPixelWriter().setPixels(0, 0, width, height,
+                PixelFormat.getByteRgbInstance(), buffer.getPixels(), 0,
+                buffer.getScanlineStride());
+        recycle(buffer);
+        shownFrames.increment();
+        long now = System.nanoTime();
+        TimedFrame frame = decoded.frame;
+        latency.record(FrameLatency.Stage.DISPLAY, frame.getDecodedNanos(),
+                now);
+        latency.record(FrameLatency.Stage.TOTAL, frame.getReceivedNanos(),
+                now);
+        frame.release();
+    }
+
+    private void recycle(PixelBuffer buffer) {
+        if (buffer != null) {
+            // drops it if the pool is somehow full
+            freeBuffers.offer(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+/**
+ * Latency of each stage a frame goes through, from the socket read to the
+ * pixels being handed to JavaFX. Keeps a summary of the last second for the
+ * UI and logs every stage every {@value #LOG_PERIOD} seconds.
+ */
+public class FrameLatency {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    public enum Stage {
+        /**
+         * Socket read to the frame callbacks, i.e. parsing and queueing.
+         */
+        QUEUE,
+        /**
+         * Frame callbacks to decoded pixels, including the wait for the
+         * decoder.
+         */
+        DECODE,
+        /**
+         * Decoded pixels to the JavaFX pulse that shows them.
+         */
+        DISPLAY,
+        /**
+         * Socket read to shown.
+         */
+        TOTAL;
+    }
+
+    private static final int SUMMARY_PERIOD_MILLIS = 1000;
+    private static final int LOG_PERIOD = 10;
+
+    private final Map<Stage, LatencyHistogram> histograms =
+            new EnumMap<>(Stage.class);
+    // only touched by the report loop
+    private final Map<Stage, LatencyHistogram.Snapshot> lastSummary =
+            new EnumMap<>(Stage.class);
+    private final Map<Stage, LatencyHistogram.Snapshot> lastLog =
+            new EnumMap<>(Stage.class);
+    private int reportsUntilLog = LOG_PERIOD;
+    private volatile LatencyHistogram.Snapshot recentTotal;
+
+    {
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histograms.put(stage, histogram);
+            lastSummary.put(stage, histogram.snapshot());
+            lastLog.put(stage, histogram.snapshot());
+        }
+        recentTotal = histograms.get(Stage.TOTAL).snapshot();
+        new ThreadLoop("FrameLatency", this::report, SUMMARY_PERIOD_MILLIS)
+                .start();
+    }
+
+    public void record(Stage stage, long startNanos, long endNanos) {
+        histograms.get(stage).recordNanos(endNanos - startNanos);
+    }
+
+    /**
+     * @return everything recorded for {@code stage} so far
+     */
+    public LatencyHistogram.Snapshot snapshot(Stage stage) {
+        return histograms.get(stage).snapshot();
+    }
+
+    /**
+     * @return total latency over roughly the last second
+     */
+    public LatencyHistogram.Snapshot getRecentTotal() {
+        return recentTotal;
+    }
+
+    private void report() {
+        Map<Stage, LatencyHistogram.Snapshot> now =
+                new EnumMap<>(Stage.class);
+        histograms.forEach((stage, histogram) -> now.put(stage,
+                histogram.snapshot()));
+        recentTotal = now.get(Stage.TOTAL)
+                .since(lastSummary.get(Stage.TOTAL));
+        lastSummary.putAll(now);
+
+        if (--reportsUntilLog > 0) {
+            return;
+        }
+        reportsUntilLog = LOG_PERIOD;
+        if (now.get(Stage.TOTAL).since(lastLog.get(Stage.TOTAL))
+                .getCount() == 0) {
+            // nothing shown, don't fill the log while disconnected
+            lastLog.putAll(now);
+            return;
+        }
+        StringBuilder message = new StringBuilder("Frame latency over the last "
+                + LOG_PERIOD + "s:");
+        for (Stage stage : Stage.values()) {
+            message.append("\n  ").append(stage).append(": ")
+                    .append(now.get(stage).since(lastLog.get(stage)));
+        }
+        lastLog.putAll(now);
+        LOGGER.info(message.toString());
+    }
+
+}
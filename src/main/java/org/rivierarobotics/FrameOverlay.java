@@ -0,0 +1,82 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import javafx.beans.binding.Bindings;
+import javafx.beans.binding.DoubleBinding;
+import javafx.geometry.Bounds;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Pane;
+import javafx.scene.shape.Line;
+
+/**
+ * Vector guides drawn over the frame view. They follow the displayed image's
+ * bounds, so they cost nothing per frame and never touch the pixels.
+ */
+public class FrameOverlay {
+
+    private final ImageView imageView;
+    private final Pane pane;
+
+    /**
+     * @param pane
+     *            - a pane stacked exactly over {@code imageView}'s parent
+     */
+    public FrameOverlay(ImageView imageView, Pane pane) {
+        this.imageView = imageView;
+        this.pane = pane;
+        pane.setMouseTransparent(true);
+    }
+
+    /**
+     * Adds a line between two points given as fractions of the image size,
+     * where {@code (0, 0)} is the top left corner of the image and
+     * {@code (1, 1)} the bottom right.
+     */
+    public Line addGuideLine(double x1, double y1, double x2, double y2) {
+        Line line = new Line();
+        line.startXProperty().bind(imageX(x1));
+        line.startYProperty().bind(imageY(y1));
+        line.endXProperty().bind(imageX(x2));
+        line.endYProperty().bind(imageY(y2));
+        pane.getChildren().add(line);
+        return line;
+    }
+
+    private DoubleBinding imageX(double fraction) {
+        return Bindings.createDoubleBinding(() -> {
+            Bounds b = imageView.getBoundsInParent();
+            return b.getMinX() + b.getWidth() * fraction;
+        }, imageView.boundsInParentProperty());
+    }
+
+    private DoubleBinding imageY(double fraction) {
+        return Bindings.createDoubleBinding(() -> {
+            Bounds b = imageView.getBoundsInParent();
+            return b.getMinY() + b.getHeight() * fraction;
+        }, imageView.boundsInParentProperty());
+    }
+
+}
@@ -24,13 +24,13 @@
  */
 package org.rivierarobotics;
 
-import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -39,13 +39,20 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -54,15 +61,45 @@ import java.util.zip.ZipOutputStream;
 import javax.imageio.ImageIO;
 
 import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.recording.DurabilityPolicy;
+import org.rivierarobotics.recording.RecordedFrame;
+import org.rivierarobotics.recording.RecordingWriter;
+import org.rivierarobotics.recording.Recordings;
+import org.rivierarobotics.recording.SpillFile;
 import org.slf4j.Logger;
 
-import com.google.common.io.ByteStreams;
-
-import javafx.beans.property.ReadOnlyIntegerProperty;
-import javafx.beans.property.ReadOnlyIntegerPropertyBase;
+import com.google.protobuf.ByteString;
 
 public class FrameRecorder {
 
+    /**
+     * What happens to new frames when the backlog waiting for the disk is
+     * full.
+     */
+    public enum BacklogPolicy {
+        /**
+         * Makes the frame callback wait for room. This also stalls every other
+         * frame consumer, including the display.
+         */
+        BLOCK,
+        /**
+         * Drops the oldest waiting frames to make room. The default.
+         */
+        DROP_OLDEST,
+        /**
+         * Drops the new frame.
+         */
+        DROP_NEWEST,
+        /**
+         * Moves frames to a temporary overflow file until the recorder catches
+         * up. Nothing is lost, order is kept. The overflow file is written from
+         * the frame callback, so on a disk too slow to keep up this stalls the
+         * other frame consumers, including the display, much like
+         * {@link #BLOCK}.
+         */
+        SPILL;
+    }
+
     private static final Logger LOGGER = LoggerUtil.callingClassLogger();
 
     private static final File REC_PATH = new File("vc2017-recorded");
@@ -75,54 +112,59 @@ public class FrameRecorder {
     }
     private static final DateTimeFormatter FILE_NAME_FORMAT =
             DateTimeFormatter.ofPattern("yyyy-MM-dd+HH.mm.ss");
+    /**
+     * Longest the encoding loop sleeps without frames, so time-based
+     * durability policies still get their syncs.
+     */
+    private static final long SYNC_CHECK_PERIOD = 100;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long DEFAULT_MAX_BACKLOG_BYTES = 64 * 1024 * 1024;
 
     private final FrameRequester requester;
+    private final String fileSuffix;
     private final Lock changeLock = new ReentrantLock();
-    private final Deque<Frame> pendingFrames = new ConcurrentLinkedDeque<>();
+    private final Deque<RecordedFrame> pendingFrames =
+            new ConcurrentLinkedDeque<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Lock backlogLock = new ReentrantLock();
+    private final Condition backlogDrained = backlogLock.newCondition();
+    private final LongAdder blockedFrames = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder spilledFrames = new LongAdder();
+    private final AtomicReference<SpillFile> spillFile =
+            new AtomicReference<>(null);
+    private volatile BacklogPolicy backlogPolicy = BacklogPolicy.DROP_OLDEST;
+    private volatile long maxBacklogBytes = DEFAULT_MAX_BACKLOG_BYTES;
     private final AtomicBoolean closeRequested = new AtomicBoolean();
-    private final AtomicReference<OutputStream> encodeStream =
+    private final AtomicReference<RecordingWriter> encodeStream =
             new AtomicReference<>(null);
     private final AtomicReference<Path> encodeFile =
             new AtomicReference<>(null);
     private final AtomicInteger frameCounter = new AtomicInteger(0);
-    private final BFCProperty behindFramesCountProperty =
-            new BFCProperty(this);
-
-    private static final class BFCProperty extends ReadOnlyIntegerPropertyBase {
-
-        private final FrameRecorder $this;
-
-        private BFCProperty(FrameRecorder $this) {
-            this.$this = $this;
-        }
-
-        @Override
-        public int get() {
-            return $this.pendingFrames.size();
-        }
-
-        @Override
-        public String getName() {
-            return "behindFramesCount";
-        }
-
-        @Override
-        public Object getBean() {
-            return $this;
-        }
+    // counted separately, ConcurrentLinkedDeque.size() walks the deque
+    private final AtomicInteger behindFrames = new AtomicInteger();
 
-        @Override
-        public void fireValueChangedEvent() {
-            super.fireValueChangedEvent();
-        }
-    }
+    private final ThreadLoop encodingLoop = new ThreadLoop("FrameRecorder",
+            this::encodingLoop, SYNC_CHECK_PERIOD, ThreadLoop.Mode.ON_WAKE);
+    private volatile DurabilityPolicy durabilityPolicy =
+            DurabilityPolicy.everyMillis(1000);
 
     {
-        new ThreadLoop("FrameRecorder", this::encodingLoop, 10).start();
+        encodingLoop.start();
     }
 
     public FrameRecorder(FrameRequester requester) {
+        this(requester, "");
+    }
+
+    /**
+     * @param name
+     *            - added to recording file names, so recorders started in the
+     *            same second don't clash. May be empty.
+     */
+    public FrameRecorder(FrameRequester requester, String name) {
         this.requester = requester;
+        this.fileSuffix = name.isEmpty() ? "" : "-" + name;
         this.requester.addFrameCallback(this::addFrame);
     }
 
@@ -134,8 +176,9 @@ public class FrameRecorder {
             }
             try {
                 Path path = REC_PATH.toPath()
-                        .resolve(LocalDateTime.now().format(FILE_NAME_FORMAT));
-                encodeStream.set(Files.newOutputStream(path));
+                        .resolve(LocalDateTime.now().format(FILE_NAME_FORMAT)
+                                + fileSuffix + Recordings.EXTENSION);
+                encodeStream.set(new RecordingWriter(path, durabilityPolicy));
                 encodeFile.set(path);
                 frameCounter.set(0);
             } catch (Exception e) {
@@ -153,49 +196,258 @@ public class FrameRecorder {
         try {
             closeRequested.set(true);
             LOGGER.info("Stop requested");
+            encodingLoop.wake();
+            // don't leave a blocked producer waiting on a stopped recorder
+            signalBacklogDrained();
         } finally {
             changeLock.unlock();
         }
     }
 
+    /**
+     * Stops recording and waits until the backlog is written out and the
+     * recording is closed.
+     * 
+     * @return {@code false} if that took longer than {@code timeout}
+     */
+    public boolean stopRecordingAndWait(long timeout, TimeUnit unit) {
+        stopRecording();
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (encodeFile.get() != null) {
+            if (System.nanoTime() >= end) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        return true;
+    }
+
     public boolean isRecording() {
         // not recording if close requested
         return !closeRequested.get() && encodeFile.get() != null;
     }
 
-    public ReadOnlyIntegerProperty behindFramesCountProperty() {
-        return behindFramesCountProperty;
+    /**
+     * Sets how often frames are forced to disk, for recordings started after
+     * this call. Frames are always forced when recording stops.
+     */
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        this.durabilityPolicy = checkNotNull(durabilityPolicy);
+    }
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    /**
+     * Sets the most JPEG bytes held in memory waiting for the disk, and what
+     * to do with frames past that.
+     */
+    public void setBacklogPolicy(BacklogPolicy policy, long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.backlogPolicy = checkNotNull(policy);
+        this.maxBacklogBytes = maxBytes;
+        signalBacklogDrained();
+    }
+
+    public BacklogPolicy getBacklogPolicy() {
+        return backlogPolicy;
+    }
+
+    public long getMaxBacklogBytes() {
+        return maxBacklogBytes;
+    }
+
+    /**
+     * @return how many frames had to wait for room under
+     *         {@link BacklogPolicy#BLOCK}
+     */
+    public long getBlockedFrameCount() {
+        return blockedFrames.sum();
+    }
+
+    /**
+     * @return how many frames were dropped under
+     *         {@link BacklogPolicy#DROP_OLDEST} or
+     *         {@link BacklogPolicy#DROP_NEWEST}, because spilling failed,
+     *         or because they arrived as a recording stopped
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * @return how many frames went through the overflow file under
+     *         {@link BacklogPolicy#SPILL}
+     */
+    public long getSpilledFrameCount() {
+        return spilledFrames.sum();
+    }
+
+    /**
+     * @return how many frames are waiting to be written, in memory or
+     *         spilled; cheap enough to poll at any rate
+     */
+    public int getBehindFramesCount() {
+        return behindFrames.get();
     }
 
     private void addFrame(Frame frame) {
         if (!isRecording()) {
             return;
         }
+        ByteString jpeg;
+        try {
+            jpeg = FrameDecoder.getJpeg(frame);
+        } catch (IOException e) {
+            LOGGER.warn("Not recording undecodable frame", e);
+            return;
+        }
+        long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        RecordedFrame recorded = new RecordedFrame(jpeg,
+                frame.getCaptureTimeMicros(), now, requester.getSource());
+        behindFrames.incrementAndGet();
+        if (enqueue(recorded)) {
+            encodingLoop.wake();
+        } else {
+            behindFrames.decrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a frame to the backlog, applying the backlog policy if it's full.
+     * 
+     * @return {@code false} if the frame was dropped
+     */
+    private boolean enqueue(RecordedFrame frame) {
+        long size = frame.getJpeg().size();
+        switch (backlogPolicy) {
+            case BLOCK:
+                awaitBacklogRoom(size);
+                break;
+            case DROP_OLDEST:
+                while (isBacklogFull(size)) {
+                    RecordedFrame oldest = pendingFrames.pollFirst();
+                    if (oldest == null) {
+                        break;
+                    }
+                    pendingBytes.addAndGet(-oldest.getJpeg().size());
+                    behindFrames.decrementAndGet();
+                    droppedFrames.increment();
+                }
+                break;
+            case DROP_NEWEST:
+                if (isBacklogFull(size)) {
+                    droppedFrames.increment();
+                    return false;
+                }
+                break;
+            case SPILL:
+                SpillFile spill = spillFile.get();
+                // once spilling, everything spills until drained to keep order
+                if (isBacklogFull(size)
+                        || (spill != null && !spill.isEmpty())) {
+                    return spill(frame);
+                }
+                break;
+            default:
+                throw new IllegalStateException(backlogPolicy.toString());
+        }
+        pendingBytes.addAndGet(size);
         pendingFrames.addLast(frame);
-        behindFramesCountProperty.fireValueChangedEvent();
+        return true;
+    }
+
+    private boolean isBacklogFull(long extraBytes) {
+        long bytes = pendingBytes.get();
+        // always let one frame through, however large
+        return bytes > 0 && bytes + extraBytes > maxBacklogBytes;
+    }
+
+    private void awaitBacklogRoom(long size) {
+        if (!isBacklogFull(size)) {
+            return;
+        }
+        blockedFrames.increment();
+        backlogLock.lock();
+        try {
+            while (isBacklogFull(size) && isRecording()
+                    && backlogPolicy == BacklogPolicy.BLOCK) {
+                backlogDrained.awaitUninterruptibly();
+            }
+        } finally {
+            backlogLock.unlock();
+        }
+    }
+
+    private void signalBacklogDrained() {
+        backlogLock.lock();
+        try {
+            backlogDrained.signalAll();
+        } finally {
+            backlogLock.unlock();
+        }
+    }
+
+    private boolean spill(RecordedFrame frame) {
+        try {
+            SpillFile spill = spillFile.get();
+            if (spill == null) {
+                // only this thread creates it, the encoder only clears it
+                spill = new SpillFile();
+                spillFile.set(spill);
+                // the recording may have closed, along with its spill file,
+                // while this one was being created
+                if (!isRecording()) {
+                    if (spillFile.compareAndSet(spill, null)) {
+                        spill.close();
+                    }
+                    droppedFrames.increment();
+                    return false;
+                }
+                LOGGER.info("Recorder backlog full, spilling to "
+                        + spill.getPath());
+            }
+            spill.append(frame);
+            spilledFrames.increment();
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Error spilling frame, dropping it", e);
+            droppedFrames.increment();
+            return false;
+        }
     }
 
     private void encodingLoop() throws Exception {
         changeLock.lock();
         try {
-            if (encodeFile.get() != null && !pendingFrames.isEmpty()) {
-                doEncode();
+            if (encodeFile.get() != null) {
+                while (hasPendingFrames()) {
+                    doEncode();
+                }
+                encodeStream.get().syncIfDue();
+            } else {
+                // frames that passed the isRecording() check as the last
+                // recording closed, they don't belong in the next one
+                discardBacklog();
             }
             if (closeRequested.get()) {
                 LOGGER.info("Stopping recording of " + encodeFile.get());
-                LOGGER.info("Flushing frames (count: " + pendingFrames.size()
-                        + ")");
-                while (!pendingFrames.isEmpty()) {
+                LOGGER.info("Flushing frames (count: "
+                        + behindFrames.get() + ")");
+                while (hasPendingFrames()) {
                     doEncode();
                 }
                 LOGGER.info("Flushed all frames, zipping");
                 // set stream so it closes in finally
-                try (OutputStream stream = encodeStream.get()) {
+                try (RecordingWriter stream = encodeStream.get()) {
                     // zipEncode();
                 } catch (Exception e) {
                     LOGGER.warn("Error zip-encoding", e);
                 } finally {
                     LOGGER.info("Finalized recording of " + encodeFile.get());
+                    // anything that raced in after the final flush
+                    discardBacklog();
                     encodeStream.set(null);
                     encodeFile.set(null);
                     closeRequested.set(false);
@@ -238,15 +490,69 @@ public class FrameRecorder {
         });
     }
 
+    private boolean hasPendingFrames() {
+        SpillFile spill = spillFile.get();
+        return !pendingFrames.isEmpty() || (spill != null && !spill.isEmpty());
+    }
+
+    /**
+     * Writes up to {@value #MAX_BATCH_SIZE} pending frames as one batch.
+     * In-memory frames always predate spilled ones, so they go first.
+     */
     private void doEncode() throws IOException {
-        checkState(!pendingFrames.isEmpty(), "no frame to encode");
-        try (InputStream stream = FrameDecoder
-                .getJpegStreamFromFrame(pendingFrames.removeFirst())) {
-            OutputStream out = encodeStream.get();
-            ByteStreams.copy(stream, out);
-            out.flush();
+        List<RecordedFrame> batch = new ArrayList<>();
+        RecordedFrame frame;
+        while (batch.size() < MAX_BATCH_SIZE
+                && (frame = pendingFrames.pollFirst()) != null) {
+            pendingBytes.addAndGet(-frame.getJpeg().size());
+            batch.add(frame);
+        }
+        SpillFile spill = spillFile.get();
+        if (batch.isEmpty() && spill != null) {
+            long bytes = 0;
+            while (batch.size() < MAX_BATCH_SIZE && bytes < maxBacklogBytes
+                    && (frame = spill.poll()) != null) {
+                bytes += frame.getJpeg().size();
+                batch.add(frame);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        behindFrames.addAndGet(-batch.size());
+        try {
+            encodeStream.get().write(batch);
         } finally {
-            behindFramesCountProperty.fireValueChangedEvent();
+            signalBacklogDrained();
+        }
+    }
+
+    /**
+     * Drops every pending frame, in memory or spilled, counting them as
+     * dropped, and closes the spill file.
+     */
+    private void discardBacklog() {
+        int discarded = 0;
+        RecordedFrame frame;
+        while ((frame = pendingFrames.pollFirst()) != null) {
+            pendingBytes.addAndGet(-frame.getJpeg().size());
+            discarded++;
+        }
+        SpillFile spill = spillFile.getAndSet(null);
+        if (spill != null) {
+            discarded += spill.getFrameCount();
+            try {
+                spill.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error closing spill file", e);
+            }
+        }
+        if (discarded > 0) {
+            behindFrames.addAndGet(-discarded);
+            droppedFrames.add(discarded);
+            LOGGER.info("Dropped " + discarded
+                    + " frames that arrived after the recording closed");
+            signalBacklogDrained();
         }
     }
 
@@ -0,0 +1,303 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.protos.Packet.Hello;
+import org.slf4j.Logger;
+
+/**
+ * Re-serves received frames to local subscribers, so any number of screens
+ * can watch while the robot link carries a single stream. Subscribers connect
+ * like they would to the vision server and get the same packets.
+ * 
+ * <p>
+ * Each frame is encoded into a packet once and the same bytes are written to
+ * every subscriber. A subscriber still busy with one frame only keeps the
+ * newest one after it, so a slow subscriber skips frames without holding up
+ * the others, and one that makes no progress at all for
+ * {@value #STALL_TIMEOUT_MILLIS}ms is disconnected. Frames are always relayed
+ * as plain JPEG, whatever the robot link negotiated. Requests from
+ * subscribers, like switching source, are ignored, and so are rate feedback
+ * and frame credits, which the relay's hello says it doesn't speak.
+ */
+public class FrameRelay implements Closeable {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final int IDLE_TIMEOUT = 500;
+    private static final long STALL_TIMEOUT_MILLIS = 5000;
+    /**
+     * The relay ignores {@code Feedback} and {@code FrameCredit}, so it must
+     * not claim a version that understands them, or subscribers would wait
+     * on credits it never honours.
+     */
+    private static final int RELAY_PROTOCOL_VERSION = 1;
+    private static final ByteBuffer HELLO = Packets.encodePacket(
+            Hello.newBuilder().setProtocolVersion(RELAY_PROTOCOL_VERSION)
+                    .addEncodings(Frame.Encoding.JPEG).build());
+
+    private static final class Subscriber {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String name;
+        private ByteBuffer current;
+        private ByteBuffer next;
+        private long lastProgressNanos = System.nanoTime();
+        private long droppedFrames;
+
+        Subscriber(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.name = String.valueOf(channel.socket()
+                    .getRemoteSocketAddress());
+        }
+
+    }
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Mailbox<ByteBuffer> nextPacket = Mailbox.latest();
+    private final ThreadLoop relayLoop =
+            new ThreadLoop("FrameRelay", this::relayLoop, 0);
+    private final LongAdder relayedFrames = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    // only touched by the relay thread
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final ByteBuffer discard = ByteBuffer.allocate(4096);
+    private volatile int subscriberCount;
+
+    public FrameRelay(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    public void start() {
+        relayLoop.start();
+        LOGGER.info("Relaying frames on " + address());
+    }
+
+    /**
+     * Queues a frame for every subscriber, replacing the previous one if the
+     * relay hasn't picked it up yet. Safe to call from any thread.
+     */
+    public void submit(Frame frame) {
+        if (subscriberCount == 0) {
+            return;
+        }
+        Frame plain;
+        try {
+            plain = frame.getEncoding() == Frame.Encoding.JPEG
+                    ? frame
+                    : frame.toBuilder().setJpeg(FrameDecoder.getJpeg(frame))
+                            .setEncoding(Frame.Encoding.JPEG).build();
+        } catch (IOException e) {
+            LOGGER.warn("Not relaying undecodable frame", e);
+            return;
+        }
+        nextPacket.offer(Packets.encodePacket(plain));
+        selector.wakeup();
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount;
+    }
+
+    /**
+     * @return how many frames were queued for subscribers
+     */
+    public long getRelayedFrameCount() {
+        return relayedFrames.sum();
+    }
+
+    /**
+     * @return how many frames subscribers skipped because they were too slow,
+     *         counted once per subscriber
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames.sum() + nextPacket.getDroppedCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the relay thread notices and disconnects everyone
+        server.close();
+        selector.wakeup();
+    }
+
+    private String address() {
+        try {
+            return String.valueOf(server.getLocalAddress());
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    private void relayLoop() throws IOException {
+        if (!server.isOpen()) {
+            for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+                disconnect(subscriber, "relay closed");
+            }
+            selector.close();
+            relayLoop.stop();
+            return;
+        }
+        selector.select(IDLE_TIMEOUT);
+        for (SelectionKey key : selector.selectedKeys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                drainRequests((Subscriber) key.attachment());
+            }
+        }
+        selector.selectedKeys().clear();
+
+        ByteBuffer packet = nextPacket.poll();
+        if (packet != null) {
+            relayedFrames.increment();
+        }
+        long now = System.nanoTime();
+        for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+            if (packet != null) {
+                enqueue(subscriber, packet.duplicate());
+            }
+            write(subscriber, now);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Subscriber subscriber = new Subscriber(channel,
+                    channel.register(selector, SelectionKey.OP_READ));
+            subscriber.key.attach(subscriber);
+            subscriber.current = HELLO.duplicate();
+            subscribers.add(subscriber);
+            subscriberCount = subscribers.size();
+            LOGGER.info("Relay subscriber connected: " + subscriber.name);
+        }
+    }
+
+    private void enqueue(Subscriber subscriber, ByteBuffer packet) {
+        if (subscriber.current == null) {
+            subscriber.current = packet;
+            return;
+        }
+        // mid-write, only the newest frame waits behind it
+        if (subscriber.next != null) {
+            subscriber.droppedFrames++;
+            droppedFrames.increment();
+        }
+        subscriber.next = packet;
+    }
+
+    private void write(Subscriber subscriber, long now) {
+        try {
+            while (subscriber.current != null) {
+                if (subscriber.channel.write(subscriber.current) > 0) {
+                    subscriber.lastProgressNanos = now;
+                }
+                if (subscriber.current.hasRemaining()) {
+                    break;
+                }
+                subscriber.current = subscriber.next;
+                subscriber.next = null;
+            }
+        } catch (IOException e) {
+            disconnect(subscriber, e.toString());
+            return;
+        }
+        if (subscriber.current == null) {
+            subscriber.key.interestOps(SelectionKey.OP_READ);
+        } else if (now - subscriber.lastProgressNanos > TimeUnit.MILLISECONDS
+                .toNanos(STALL_TIMEOUT_MILLIS)) {
+            disconnect(subscriber, "stalled");
+        } else {
+            subscriber.key.interestOps(
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void drainRequests(Subscriber subscriber) {
+        try {
+            int read;
+            do {
+                discard.clear();
+                read = subscriber.channel.read(discard);
+            } while (read > 0);
+            if (read < 0) {
+                disconnect(subscriber, "end of stream");
+            }
+        } catch (IOException e) {
+            disconnect(subscriber, e.toString());
+        }
+    }
+
+    private void disconnect(Subscriber subscriber, String reason) {
+        if (!subscribers.remove(subscriber)) {
+            return;
+        }
+        subscriberCount = subscribers.size();
+        subscriber.key.cancel();
+        try {
+            subscriber.channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing " + subscriber.name, e);
+        }
+        LOGGER.info("Relay subscriber " + subscriber.name + " left ("
+                + reason + "), skipped " + subscriber.droppedFrames
+                + " frames");
+    }
+
+}
@@ -24,34 +24,83 @@
  */
 package org.rivierarobotics;
 
-import java.util.Optional;
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
+import org.rivierarobotics.packet.Packets;
 import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.protos.Packet.FrameCredit;
+import org.rivierarobotics.protos.Packet.Hello;
 import org.rivierarobotics.protos.Packet.SetFrameType;
 
 import com.google.common.collect.Sets;
 
+/**
+ * Hands frames from the network thread to the frame callbacks. The network
+ * thread only drops the frame in a single slot and wakes the dispatch loop,
+ * so slow callbacks never hold up reading from the socket.
+ * 
+ * <p>
+ * With servers that support it, frames are flow controlled: the server gets
+ * a window of credits when it says hello, and one credit back for each frame
+ * once every callback is done with it, so no more than the window is ever
+ * queued up in the network between us.
+ */
 public class FrameRequester {
 
+    /**
+     * One frame on screen, one decoding and one on its way.
+     */
+    public static final int DEFAULT_CREDIT_WINDOW = 3;
+
     private final NetworkManager network;
-    private final Set<Consumer<Frame>> frameCallback =
+    private final Set<Consumer<TimedFrame>> frameCallback =
             Sets.newConcurrentHashSet();
+    private final Mailbox<TimedFrame> nextFrame = Mailbox.latest();
+    private final FrameLatency latency = new FrameLatency();
+    private final ThreadLoop dispatchLoop = new ThreadLoop("FrameRequester",
+            this::frameRequestLoop, 0, ThreadLoop.Mode.ON_WAKE);
+    private final LongAdder lostFrames = new LongAdder();
+    private final LongAdder receivedFrames = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
     private volatile Source source = Source.PLAIN;
-    private volatile boolean sendSource = false;
+    private volatile int creditWindow = DEFAULT_CREDIT_WINDOW;
+    // set on the network thread, null when not flow controlled
+    private volatile Hello creditedHello;
+    // only touched by the network thread
+    private long lastSequence;
 
     {
-        new ThreadLoop("FrameRequester", this::frameRequestLoop, 10).start();
+        dispatchLoop.start();
     }
 
     public FrameRequester(NetworkManager network) {
         this.network = network;
+        this.network.addMessageHandler(Frame.class, this::onFrame);
+        this.network.addMessageHandler(Hello.class, this::onHello);
+    }
+
+    /**
+     * Sets how many frames the server may have in flight, for connections
+     * made after this call. 0 leaves servers pushing frames as fast as they
+     * like.
+     */
+    public void setCreditWindow(int frames) {
+        checkArgument(frames >= 0, "frames must not be negative");
+        this.creditWindow = frames;
+    }
+
+    public int getCreditWindow() {
+        return creditWindow;
     }
 
     public void setSource(Source source) {
         this.source = source;
-        sendSource = true;
+        network.sendMessage(SetFrameType.newBuilder()
+                .setType(SetFrameType.Type.valueOf(source.name())).build());
     }
 
     public Source getSource() {
@@ -59,18 +108,103 @@ public class FrameRequester {
     }
 
     public void addFrameCallback(Consumer<Frame> frameCallback) {
+        addTimedFrameCallback(frame -> frameCallback.accept(frame.getFrame()));
+    }
+
+    /**
+     * Adds a callback that also gets the frame's timestamps, for stages that
+     * report to {@link #getLatency()}.
+     */
+    public void addTimedFrameCallback(Consumer<TimedFrame> frameCallback) {
         this.frameCallback.add(frameCallback);
     }
 
-    public void frameRequestLoop() {
-        if (sendSource) {
-            network.sendMessage(SetFrameType.newBuilder()
-                    .setType(SetFrameType.Type.valueOf(source.name())).build());
-            sendSource = false;
+    public FrameLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return how many frames were replaced by a newer one before the
+     *         callbacks got to them
+     */
+    public long getSkippedFrameCount() {
+        return nextFrame.getDroppedCount();
+    }
+
+    /**
+     * @return how many frames went missing between the server and us, going
+     *         by gaps in the frame sequence numbers
+     */
+    public long getLostFrameCount() {
+        return lostFrames.sum();
+    }
+
+    public long getReceivedFrameCount() {
+        return receivedFrames.sum();
+    }
+
+    /**
+     * @return image bytes received, as sent, so before any inflating
+     */
+    public long getReceivedByteCount() {
+        return receivedBytes.sum();
+    }
+
+    private void frameRequestLoop() {
+        TimedFrame frame;
+        while ((frame = nextFrame.poll()) != null) {
+            long now = System.nanoTime();
+            frame.markDispatched(now);
+            latency.record(FrameLatency.Stage.QUEUE, frame.getReceivedNanos(),
+                    now);
+            try {
+                for (Consumer<TimedFrame> callback : frameCallback) {
+                    callback.accept(frame);
+                }
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    private void onFrame(Frame frame) {
+        receivedFrames.increment();
+        receivedBytes.add(frame.getJpeg().size());
+        long sequence = frame.getSequence();
+        if (sequence != 0) {
+            // anything not ahead of the last one is a restarted server
+            if (lastSequence != 0 && sequence > lastSequence + 1) {
+                lostFrames.add(sequence - lastSequence - 1);
+            }
+            lastSequence = sequence;
+        }
+        Hello hello = creditedHello;
+        TimedFrame replaced = nextFrame.replace(new TimedFrame(frame,
+                network.getReceiveNanos(),
+                hello == null ? null : () -> grantCredit(hello)));
+        if (replaced != null) {
+            replaced.release();
         }
-        Optional<Frame> frame = network.nextMessageOfType(Frame.class);
-        if (frame.isPresent()) {
-            frameCallback.forEach(c -> c.accept(frame.get()));
+        dispatchLoop.wake();
+    }
+
+    private void onHello(Hello hello) {
+        int window = creditWindow;
+        if (window == 0
+                || hello.getProtocolVersion() < Packets.CREDIT_VERSION) {
+            creditedHello = null;
+            return;
+        }
+        creditedHello = hello;
+        network.sendMessage(
+                FrameCredit.newBuilder().setCredits(window).build());
+    }
+
+    private void grantCredit(Hello hello) {
+        // a new connection got a fresh window, don't add to it
+        if (network.getServerHello().orElse(null) == hello) {
+            network.sendMessage(
+                    FrameCredit.newBuilder().setCredits(1).build());
         }
     }
 
@@ -0,0 +1,243 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.rivierarobotics.recording.DurabilityPolicy;
+import org.slf4j.Logger;
+
+/**
+ * Records and/or relays the vision stream without any UI. Only the network, the
+ * requester, the recorder and the relay or MJPEG servers run, and frames are
+ * passed on exactly as they arrive, so no JPEG is ever decoded and JavaFX is
+ * never started. Progress goes to stdout, since the log only goes to a file.
+ * 
+ * <p>
+ * Options can be given on the command line as {@code --name value}, or in a
+ * properties file passed with {@code --config} using the same names without
+ * the dashes. The command line wins.
+ */
+public final class HeadlessClient {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    private static void usage() {
+        System.err.println("usage: VisionClient --headless"
+                + " --address HOST:PORT [--source plain|processed]"
+                + " [--sync-millis N] [--backlog block|drop_oldest|"
+                + "drop_newest|spill] [--backlog-mb N] [--stats-seconds N]"
+                + " [--record true|false] [--relay-port N] [--mjpeg-port N]"
+                + " [--adaptive true|false] [--credit-window N]"
+                + " [--config FILE]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Properties options = parseOptions(args);
+        String[] address = options.getProperty("address", "").split(":", 2);
+        if (address.length != 2 || address[0].isEmpty()) {
+            usage();
+        }
+        int port = 0;
+        Source source = null;
+        long syncMillis = 0;
+        FrameRecorder.BacklogPolicy backlog = null;
+        long backlogMegabytes = 0;
+        long statsSeconds = 0;
+        boolean record = true;
+        boolean adaptive = true;
+        int creditWindow = 0;
+        int relayPort = 0;
+        int mjpegPort = 0;
+        try {
+            port = Integer.parseInt(address[1]);
+            source = Source.valueOf(options.getProperty("source", "plain")
+                    .toUpperCase(Locale.ENGLISH));
+            syncMillis = Long.parseLong(
+                    options.getProperty("sync-millis", "1000"));
+            // nothing to display, so keeping every frame wins over keeping
+            // dispatch moving
+            backlog = FrameRecorder.BacklogPolicy.valueOf(options
+                    .getProperty("backlog", "spill")
+                    .toUpperCase(Locale.ENGLISH));
+            backlogMegabytes = Long.parseLong(
+                    options.getProperty("backlog-mb", "64"));
+            statsSeconds = Long.parseLong(
+                    options.getProperty("stats-seconds", "10"));
+            record = Boolean.parseBoolean(
+                    options.getProperty("record", "true"));
+            adaptive = Boolean.parseBoolean(
+                    options.getProperty("adaptive", "true"));
+            creditWindow = Integer.parseInt(options.getProperty(
+                    "credit-window",
+                    String.valueOf(FrameRequester.DEFAULT_CREDIT_WINDOW)));
+            relayPort = Integer.parseInt(
+                    options.getProperty("relay-port", "0"));
+            mjpegPort = Integer.parseInt(
+                    options.getProperty("mjpeg-port", "0"));
+        } catch (IllegalArgumentException e) {
+            usage();
+        }
+        if (statsSeconds <= 0) {
+            usage();
+        }
+
+        VisionStream stream = new VisionStream("");
+        NetworkManager network = stream.getNetwork();
+        FrameRequester requester = stream.getRequester();
+        FrameRecorder recorder = stream.getRecorder();
+        stream.getRateController().setAdaptive(adaptive);
+        requester.setCreditWindow(creditWindow);
+        LongAdder receivedFrames = new LongAdder();
+        // capture to dispatch, capture going by the server's clock, so only
+        // meaningful when the clocks agree, e.g. with a local stand-in server
+        LatencyHistogram frameAge = new LatencyHistogram();
+        requester.addFrameCallback(frame -> {
+            receivedFrames.increment();
+            long captureMicros = frame.getCaptureTimeMicros();
+            if (captureMicros != 0) {
+                long nowMicros = TimeUnit.MILLISECONDS
+                        .toMicros(System.currentTimeMillis());
+                frameAge.recordNanos(TimeUnit.MICROSECONDS
+                        .toNanos(nowMicros - captureMicros));
+            }
+        });
+        recorder.setDurabilityPolicy(syncMillis > 0
+                ? DurabilityPolicy.everyMillis(syncMillis)
+                : DurabilityPolicy.ON_CLOSE);
+        recorder.setBacklogPolicy(backlog, backlogMegabytes * 1024 * 1024);
+
+        network.addConnectionStateListener(
+                state -> LOGGER.info("Connection " + state));
+        network.setAddr(address[0]);
+        network.setPort(port);
+        if (source != Source.PLAIN) {
+            requester.setSource(source);
+        }
+        FrameRelay relay = null;
+        if (relayPort > 0) {
+            relay = new FrameRelay(new InetSocketAddress(relayPort));
+            requester.addFrameCallback(relay::submit);
+            relay.start();
+        }
+        MjpegServer mjpeg = null;
+        if (mjpegPort > 0) {
+            mjpeg = new MjpegServer(new InetSocketAddress(mjpegPort));
+            requester.addFrameCallback(mjpeg::submit);
+            mjpeg.clearOnDisconnect(network);
+            mjpeg.start();
+        }
+        if (record) {
+            recorder.startRecording();
+            if (!recorder.isRecording()) {
+                LOGGER.error("Could not start recording");
+                System.exit(1);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (!recorder.stopRecordingAndWait(STOP_TIMEOUT_SECONDS,
+                        TimeUnit.SECONDS)) {
+                    LOGGER.warn("Gave up waiting for the recording to close");
+                }
+            }, "HeadlessClient shutdown"));
+        }
+        System.out.println((record ? "Recording " : "Receiving ") + source
+                + " frames from " + options.getProperty("address")
+                + (relay != null ? ", relaying on port " + relayPort : "")
+                + (mjpeg != null ? ", MJPEG on port " + mjpegPort : "")
+                + ", Ctrl-C to stop");
+
+        long lastFrames = 0;
+        LatencyHistogram.Snapshot lastAge = frameAge.snapshot();
+        while (true) {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(statsSeconds));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long frames = receivedFrames.sum();
+            LatencyHistogram.Snapshot age = frameAge.snapshot();
+            System.out.println(String.format(
+                    "%.1f fps, %d lost, %d skipped, %d behind, %d spilled,"
+                            + " %d dropped",
+                    (frames - lastFrames) / (double) statsSeconds,
+                    requester.getLostFrameCount(),
+                    requester.getSkippedFrameCount(),
+                    recorder.getBehindFramesCount(),
+                    recorder.getSpilledFrameCount(),
+                    recorder.getDroppedFrameCount())
+                    + (relay == null ? "" : String.format(
+                            ", %d subscribers, %d relay skipped",
+                            relay.getSubscriberCount(),
+                            relay.getDroppedFrameCount()))
+                    + (mjpeg == null ? "" : String.format(
+                            ", %d MJPEG viewers", mjpeg.getViewerCount()))
+                    + ", asking for "
+                    + stream.getRateController().getRequestSummary()
+                    + (age.getCount() == lastAge.getCount() ? ""
+                            : ", frame age " + age.since(lastAge)));
+            lastFrames = frames;
+            lastAge = age;
+        }
+    }
+
+    private static Properties parseOptions(String[] args) throws IOException {
+        Properties options = new Properties();
+        Properties config = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                usage();
+            }
+            String name = args[i].substring(2);
+            String value = args[++i];
+            if (name.equals("config")) {
+                try (Reader reader = Files.newBufferedReader(Paths.get(value),
+                        StandardCharsets.UTF_8)) {
+                    config.load(reader);
+                }
+            } else {
+                options.setProperty(name, value);
+            }
+        }
+        config.putAll(options);
+        return config;
+    }
+
+    private HeadlessClient() {
+    }
+
+}
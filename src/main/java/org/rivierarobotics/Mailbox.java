@@ -0,0 +1,158 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free bounded hand-off between one thread and another, with an explicit
+ * policy for what gets dropped when the consumer falls behind.
+ */
+public final class Mailbox<T> {
+
+    public enum Policy {
+        /**
+         * Holds only the newest item, older unconsumed items are dropped.
+         */
+        LATEST,
+        /**
+         * Holds items in order up to the capacity, then drops new ones.
+         */
+        FIFO;
+    }
+
+    public static <T> Mailbox<T> latest() {
+        return new Mailbox<>(Policy.LATEST, 1);
+    }
+
+    public static <T> Mailbox<T> fifo(int capacity) {
+        return new Mailbox<>(Policy.FIFO, capacity);
+    }
+
+    private final Policy policy;
+    private final int capacity;
+    private final AtomicReference<T> latest = new AtomicReference<>();
+    private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+
+    public Mailbox(Policy policy, int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.policy = policy;
+        this.capacity = policy == Policy.LATEST ? 1 : capacity;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds an item, dropping one according to the policy if full.
+     * 
+     * @return {@code false} if {@code item} itself was dropped
+     */
+    public boolean offer(T item) {
+        switch (policy) {
+            case LATEST:
+                if (latest.getAndSet(item) != null) {
+                    dropped.increment();
+                }
+                return true;
+            case FIFO:
+                if (size.incrementAndGet() > capacity) {
+                    size.decrementAndGet();
+                    dropped.increment();
+                    return false;
+                }
+                queue.add(item);
+                return true;
+            default:
+                throw new IllegalStateException(policy.toString());
+        }
+    }
+
+    /**
+     * Adds an item to a {@link Policy#LATEST} mailbox, for callers that need
+     * to clean up after the item it drops.
+     * 
+     * @return the unconsumed item {@code item} replaced, or {@code null}
+     */
+    public T replace(T item) {
+        checkState(policy == Policy.LATEST, "only LATEST mailboxes replace");
+        T replaced = latest.getAndSet(item);
+        if (replaced != null) {
+            dropped.increment();
+        }
+        return replaced;
+    }
+
+    /**
+     * @return the next item, or {@code null} if empty
+     */
+    public T poll() {
+        switch (policy) {
+            case LATEST:
+                return latest.getAndSet(null);
+            case FIFO:
+                T item = queue.poll();
+                if (item != null) {
+                    size.decrementAndGet();
+                }
+                return item;
+            default:
+                throw new IllegalStateException(policy.toString());
+        }
+    }
+
+    public int size() {
+        switch (policy) {
+            case LATEST:
+                return latest.get() == null ? 0 : 1;
+            case FIFO:
+                return size.get();
+            default:
+                throw new IllegalStateException(policy.toString());
+        }
+    }
+
+    /**
+     * @return how many items have been dropped since creation
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+}
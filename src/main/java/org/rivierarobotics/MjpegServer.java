@@ -0,0 +1,241 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rivierarobotics.protos.Packet.Frame;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the live frames to browsers as MJPEG, at {@code /stream.mjpg}, with a
+ * page showing it at {@code /}.
+ * 
+ * <p>
+ * The received JPEG bytes are sent as they are, and each frame's part header
+ * is built once and shared by every viewer. Every viewer has its own thread
+ * that waits for the newest frame and skips whatever it missed while writing,
+ * so a slow viewer only slows itself. Submitting a frame never waits on a
+ * viewer.
+ */
+public class MjpegServer {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final String BOUNDARY = "vc2017frame";
+    private static final byte[] CRLF =
+            "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INDEX = ("<!DOCTYPE html><html><head>"
+            + "<title>Vision</title><meta name=\"viewport\""
+            + " content=\"width=device-width\"></head>"
+            + "<body style=\"margin:0;background:#000\">"
+            + "<img src=\"stream.mjpg\" style=\"width:100%\"></body></html>")
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final long WAIT_MILLIS = 1000;
+
+    /**
+     * One frame, ready to write.
+     */
+    private static final class Part {
+
+        private final long number;
+        private final byte[] header;
+        private final ByteString jpeg;
+
+        Part(long number, ByteString jpeg) {
+            this.number = number;
+            this.header = ("--" + BOUNDARY + "\r\nContent-Type: image/jpeg"
+                    + "\r\nContent-Length: " + jpeg.size() + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII);
+            this.jpeg = jpeg;
+        }
+
+    }
+
+    private final HttpServer server;
+    private final ExecutorService viewerThreads;
+    private final Object partLock = new Object();
+    private final AtomicInteger viewerCount = new AtomicInteger();
+    private volatile Part latest;
+    private volatile boolean stopped;
+    private long partNumber;
+
+    public MjpegServer(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        viewerThreads = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("MjpegServer %d")
+                        .setDaemon(true).build());
+        server.setExecutor(viewerThreads);
+        server.createContext("/", this::serveIndex);
+        server.createContext("/stream.mjpg", this::serveStream);
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Serving MJPEG on http://" + server.getAddress() + "/");
+    }
+
+    public void stop() {
+        stopped = true;
+        synchronized (partLock) {
+            partLock.notifyAll();
+        }
+        server.stop(0);
+        viewerThreads.shutdown();
+    }
+
+    /**
+     * Makes {@code frame} the one viewers get next. Safe to call from any
+     * thread, and never blocks on viewers.
+     */
+    public void submit(Frame frame) {
+        if (viewerCount.get() == 0) {
+            return;
+        }
+        ByteString jpeg;
+        try {
+            jpeg = FrameDecoder.getJpeg(frame);
+        } catch (IOException e) {
+            LOGGER.warn("Not serving undecodable frame", e);
+            return;
+        }
+        synchronized (partLock) {
+            latest = new Part(++partNumber, jpeg);
+            partLock.notifyAll();
+        }
+    }
+
+    /**
+     * Forgets the current frame, so viewers that connect next wait for a new
+     * one instead of starting on a stale frame, e.g. after the robot link
+     * dropped.
+     */
+    public void clear() {
+        synchronized (partLock) {
+            latest = null;
+        }
+    }
+
+    /**
+     * Clears the current frame whenever {@code network} loses its connection.
+     */
+    public void clearOnDisconnect(NetworkManager network) {
+        network.addConnectionStateListener(state -> {
+            if (state != NetworkManager.ConnectionState.CONNECTED) {
+                clear();
+            }
+        });
+    }
+
+    public int getViewerCount() {
+        return viewerCount.get();
+    }
+
+    private void serveIndex(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestURI().getPath().equals("/")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type",
+                    "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(200, INDEX.length);
+            exchange.getResponseBody().write(INDEX);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void serveStream(HttpExchange exchange) throws IOException {
+        String viewer = String.valueOf(exchange.getRemoteAddress());
+        viewerCount.incrementAndGet();
+        LOGGER.info("MJPEG viewer connected: " + viewer);
+        long sent = 0;
+        long skipped = 0;
+        try {
+            exchange.getResponseHeaders().set("Content-Type",
+                    "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            long lastNumber = 0;
+            Part part;
+            while ((part = awaitPartAfter(lastNumber)) != null) {
+                if (lastNumber != 0) {
+                    skipped += part.number - lastNumber - 1;
+                }
+                lastNumber = part.number;
+                out.write(part.header);
+                part.jpeg.writeTo(out);
+                out.write(CRLF);
+                out.flush();
+                sent++;
+            }
+        } catch (IOException e) {
+            // viewer went away
+        } catch (InterruptedException e) {
+            // we're stopping
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+            if (viewerCount.decrementAndGet() == 0) {
+                // nobody to submit for until the next viewer, so whatever
+                // is held will be stale by then
+                clear();
+            }
+            LOGGER.info("MJPEG viewer " + viewer + " left after " + sent
+                    + " frames, skipped " + skipped);
+        }
+    }
+
+    /**
+     * @return the newest part if it's newer than {@code number}, waiting for
+     *         one if needed, or {@code null} once stopped
+     */
+    private Part awaitPartAfter(long number) throws InterruptedException {
+        synchronized (partLock) {
+            while (!stopped) {
+                Part part = latest;
+                if (part != null && part.number > number) {
+                    return part;
+                }
+                partLock.wait(WAIT_MILLIS);
+            }
+            return null;
+        }
+    }
+
+}
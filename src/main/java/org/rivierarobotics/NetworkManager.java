@@ -25,115 +25,290 @@
 package org.rivierarobotics;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+import org.rivierarobotics.packet.MessageDispatcher;
+import org.rivierarobotics.packet.PacketReader;
 import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.protos.Packet.Hello;
 import org.slf4j.Logger;
 
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.Any;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
+/**
+ * Keeps a connection to the vision server, reconnecting whenever it's lost,
+ * and moves messages in both directions on its own thread.
+ * 
+ * <p>
+ * Connecting never blocks the network thread: names are resolved on a
+ * separate thread and sockets connect in the background, both bounded by
+ * {@value #CONNECT_TIMEOUT} ms. Failed attempts are retried after a jittered
+ * delay that doubles from {@value #MIN_BACKOFF} ms up to
+ * {@value #MAX_BACKOFF} ms, so a rebooting robot is picked up soon after it's
+ * back. Losing a connection or changing the address retries at once.
+ */
 public class NetworkManager {
 
     private static final Logger LOGGER = LoggerUtil.callingClassLogger();
 
-    private static final int RECONNECT_TIMEOUT = 500;
+    public enum ConnectionState {
+        /**
+         * No address to connect to.
+         */
+        NO_ADDRESS,
+        /**
+         * Resolving the address or waiting for the server to accept.
+         */
+        CONNECTING,
+        CONNECTED,
+        /**
+         * Waiting to retry after a failed attempt.
+         */
+        BACKING_OFF;
+    }
+
+    /**
+     * Long enough for the first SYN retransmit, in case the server came up
+     * during the attempt.
+     */
+    private static final int CONNECT_TIMEOUT = 1500;
+    private static final int MIN_BACKOFF = 50;
+    private static final int MAX_BACKOFF = 500;
+    /**
+     * How often to check for an address when there is none.
+     */
+    private static final int NO_ADDRESS_WAIT = 500;
     private static final int IDLE_TIMEOUT = 500;
+    /**
+     * A connection that received nothing still counts as working once it
+     * stays up this long. Shorter ones count as failed attempts.
+     */
+    private static final int HEALTHY_CONNECTION = 1000;
+
+    private static final ExecutorService RESOLVER =
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setNameFormat("NetworkManager resolver %d")
+                    .setDaemon(true).build());
 
-    private final Deque<Any> incomingPackets = new ConcurrentLinkedDeque<>();
-    private final Lock inPacketLock = new ReentrantLock();
+    private static final int DEFAULT_MAILBOX_CAPACITY = 64;
+
+    private static final Hello HELLO = Hello.newBuilder()
+            .setProtocolVersion(Packets.PROTOCOL_VERSION)
+            .addAllEncodings(FrameDecoder.SUPPORTED_ENCODINGS).build();
+
+    private final ConcurrentMap<String, Mailbox<Any>> incomingPackets =
+            new ConcurrentHashMap<>();
     private final Deque<Message> outgoingPackets =
             new ConcurrentLinkedDeque<>();
-    private final Lock outPacketLock = new ReentrantLock();
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private final Selector selector;
+    private final PacketReader packetReader = new PacketReader();
+    private final Set<Consumer<ConnectionState>> stateListeners =
+            Sets.newConcurrentHashSet();
     private volatile String addr;
     private volatile int port;
-    private volatile Socket connection;
-    private final Lock connLock = new ReentrantLock();
+    private volatile boolean connectionInvalid;
+    private volatile Hello serverHello;
+    private volatile ConnectionState state = ConnectionState.NO_ADDRESS;
+    // only touched by the network thread
+    private SocketChannel connection;
+    private SelectionKey connectionKey;
+    private CompletableFuture<InetSocketAddress> resolving;
+    private SocketChannel connecting;
+    private SelectionKey connectingKey;
+    private long connectDeadlineNanos;
+    private int failedConnects;
+    private long connectedNanos;
+    private boolean receivedPacket;
+    private ByteBuffer pendingWrite;
     private boolean idleSet;
     private long idleNanos;
     private long reconnectNanos;
+    private long receiveNanos;
 
     {
-        new ThreadLoop("NetworkManager", this::networkLoop, 10).start();
+        // only the newest frame matters, everything else is kept in order
+        setMailboxPolicy(Frame.class, Mailbox.Policy.LATEST, 1);
+        addMessageHandler(Hello.class, this::onHello);
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // no period, the selector does all of the waiting
+        new ThreadLoop("NetworkManager", this::networkLoop, 0).start();
     }
 
     public void setAddr(String addr) {
         this.addr = addr;
+        invalidateConnection();
+    }
 
-        // invalidate socket
-        try {
-            if (connection != null) {
-                connection.close();
-            }
-        } catch (IOException e) {
-            LOGGER.warn("Error closing socket", e);
-        }
+    public String getAddr() {
+        return addr;
     }
 
     public void setPort(int port) {
         this.port = port;
+        invalidateConnection();
+    }
 
-        // invalidate socket
-        try {
-            if (connection != null) {
-                connection.close();
-            }
-        } catch (IOException e) {
-            LOGGER.warn("Error closing socket", e);
-        }
+    public int getPort() {
+        return port;
+    }
+
+    public ConnectionState getConnectionState() {
+        return state;
+    }
+
+    /**
+     * Registers {@code listener} to be called on the network thread with each
+     * new connection state. It must return quickly.
+     */
+    public void addConnectionStateListener(
+            Consumer<ConnectionState> listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeConnectionStateListener(
+            Consumer<ConnectionState> listener) {
+        stateListeners.remove(listener);
+    }
+
+    private void invalidateConnection() {
+        // the network thread owns the socket, let it do the closing
+        connectionInvalid = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Registers {@code handler} to be called on the network thread as soon as
+     * a message of {@code type} is decoded. Handled messages are not queued
+     * for {@link #nextMessageOfType(Class)}.
+     */
+    public <M extends Message> void addMessageHandler(Class<M> type,
+            Consumer<M> handler) {
+        addMessageHandler(type, handler, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Registers {@code handler} to be run on {@code executor} whenever a
+     * message of {@code type} is decoded.
+     */
+    public <M extends Message> void addMessageHandler(Class<M> type,
+            Consumer<M> handler, Executor executor) {
+        dispatcher.addHandler(type, handler, executor);
+    }
+
+    /**
+     * Unregisters {@code handler}, which must be the instance passed to
+     * {@code addMessageHandler}, see
+     * {@link MessageDispatcher#removeHandler(Class, Consumer)}.
+     * 
+     * @return {@code false} if {@code handler} wasn't registered
+     */
+    public <M extends Message> boolean removeMessageHandler(Class<M> type,
+            Consumer<M> handler) {
+        return dispatcher.removeHandler(type, handler);
+    }
+
+    /**
+     * Sets how unhandled messages of {@code type} are queued for
+     * {@link #nextMessageOfType(Class)}. Types without a policy get a bounded
+     * {@link Mailbox.Policy#FIFO FIFO} mailbox of
+     * {@value #DEFAULT_MAILBOX_CAPACITY} messages, which drops the newest
+     * messages once full.
+     */
+    public void setMailboxPolicy(Class<? extends Message> type,
+            Mailbox.Policy policy, int capacity) {
+        incomingPackets.put(Packets.typeName(type),
+                new Mailbox<>(policy, capacity));
+    }
+
+    /**
+     * @return how many messages of {@code type} were dropped because nobody
+     *         took them out of the mailbox in time
+     */
+    public long getDroppedMessageCount(Class<? extends Message> type) {
+        Mailbox<Any> mailbox = incomingPackets.get(Packets.typeName(type));
+        return mailbox == null ? 0 : mailbox.getDroppedCount();
     }
 
     public <M extends Message> Optional<M> nextMessageOfType(Class<M> type) {
-        // lock over list access to sync
-        inPacketLock.lock();
+        Mailbox<Any> mailbox = incomingPackets.get(Packets.typeName(type));
+        Any a = mailbox == null ? null : mailbox.poll();
+        if (a == null) {
+            return Optional.empty();
+        }
         try {
-            for (Iterator<Any> iterator = incomingPackets.iterator(); iterator
-                    .hasNext();) {
-                Any a = iterator.next();
-                if (a.is(type)) {
-                    iterator.remove();
-                    try {
-                        return Optional.of(a.unpack(type));
-                    } catch (InvalidProtocolBufferException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-
-            }
-        } finally {
-            inPacketLock.unlock();
+            return Optional.of(Packets.unpack(a, type));
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException(e);
         }
-        return Optional.empty();
+    }
+
+    /**
+     * @return the hello the server sent on this connection, empty if it hasn't
+     *         sent one (yet)
+     */
+    public Optional<Hello> getServerHello() {
+        return Optional.ofNullable(serverHello);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the packets being dispatched were
+     *         read off the socket at. Only meaningful from a handler running on
+     *         the network thread.
+     */
+    public long getReceiveNanos() {
+        return receiveNanos;
     }
 
     public void sendMessage(Message message) {
-        outPacketLock.lock();
-        try {
-            outgoingPackets.addLast(message);
-        } finally {
-            outPacketLock.unlock();
-        }
+        outgoingPackets.addLast(message);
+        selector.wakeup();
     }
 
     private void networkLoop() throws Exception {
-        connLock.lock();
         try {
-            if (connection != null && connection.isClosed()) {
-                connection = null;
+            if (connectionInvalid) {
+                connectionInvalid = false;
+                if (connection != null) {
+                    disconnect();
+                }
+                abandonConnect();
+                // address changed, don't hold off the new connection
+                failedConnects = 0;
+                reconnectNanos = 0;
             }
 
             if (connection != null) {
+                selector.select(IDLE_TIMEOUT);
+                selector.selectedKeys().clear();
                 readPackets();
                 writePackets();
             } else {
@@ -142,66 +317,181 @@ public class NetworkManager {
         } catch (Exception e) {
             // close out conn on errors
             if (connection != null) {
-                try {
-                    connection.close();
-                } catch (Throwable t) {
-                    e.addSuppressed(t);
-                } finally {
-                    connection = null;
-                }
                 disconnect();
             }
+            abandonConnect();
             throw e;
-        } finally {
-            connLock.unlock();
         }
     }
 
-    private void establishConnection()
-            throws UnknownHostException, IOException {
+    private void establishConnection() throws IOException {
+        if (resolving != null) {
+            awaitResolved();
+            return;
+        }
+        if (connecting != null) {
+            awaitConnected();
+            return;
+        }
+        String addr = this.addr;
+        int port = this.port;
         if (addr == null || addr.isEmpty() || port == 0) {
+            setState(ConnectionState.NO_ADDRESS);
+            // wakes early if the address changes
+            waitMillis(NO_ADDRESS_WAIT);
             return;
         }
-        while (System.nanoTime() < reconnectNanos) {
-            // stall thread until ready, to prevent grinding CPU
-            try {
-                long totalNanos = reconnectNanos - System.nanoTime();
-                long millis = TimeUnit.NANOSECONDS.toMillis(totalNanos);
-                int extraNanos = (int) (totalNanos
-                        - TimeUnit.MILLISECONDS.toNanos(millis));
-                Thread.sleep(millis, extraNanos);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        long waitNanos = reconnectNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            // wakes early if the address changes
+            waitMillis(toMillisRoundingUp(waitNanos));
+            return;
+        }
+        setState(ConnectionState.CONNECTING);
+        connectDeadlineNanos = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT);
+        // resolving a name can block for a long time, e.g. an mDNS name
+        // while the robot is off
+        resolving = CompletableFuture.supplyAsync(
+                () -> new InetSocketAddress(addr, port), RESOLVER);
+        resolving.whenComplete((address, e) -> selector.wakeup());
+    }
+
+    private void awaitResolved() throws IOException {
+        if (!resolving.isDone()) {
+            long remainingNanos = connectDeadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                // leave it to finish on its own
+                resolving = null;
+                connectFailed("timed out resolving " + addr);
+            } else {
+                waitMillis(toMillisRoundingUp(remainingNanos));
             }
+            return;
+        }
+        InetSocketAddress address = resolving.join();
+        resolving = null;
+        if (address.isUnresolved()) {
+            connectFailed("could not resolve " + address.getHostString());
+            return;
         }
-        connLock.lock();
+        SocketChannel channel = SocketChannel.open();
         try {
-            connection = new Socket(addr, port);
-            connection.setSoTimeout(500);
+            channel.configureBlocking(false);
+            SelectionKey key =
+                    channel.register(selector, SelectionKey.OP_CONNECT);
+            connecting = channel;
+            connectingKey = key;
+            if (channel.connect(address)) {
+                connected();
+            }
         } catch (IOException e) {
-            // ignore it
-        }finally {
-            connLock.unlock();
+            abandonConnect();
+            channel.close();
+            connectFailed(e.toString());
         }
     }
 
-    private void readPackets() throws IOException {
-        InputStream in = connection.getInputStream();
-        boolean anyRead = false;
-        while (in.available() > 0) {
-            anyRead = true;
-            inPacketLock.lock();
+    private void awaitConnected() throws IOException {
+        long remainingNanos = connectDeadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+            abandonConnect();
+            connectFailed("timed out connecting");
+            return;
+        }
+        waitMillis(toMillisRoundingUp(remainingNanos));
+        if (connectionInvalid) {
+            // dealt with at the top of the loop
+            return;
+        }
+        try {
+            if (connecting.finishConnect()) {
+                connected();
+            }
+        } catch (IOException e) {
+            abandonConnect();
+            connectFailed(e.toString());
+        }
+    }
+
+    private void connected() {
+        connection = connecting;
+        connectionKey = connectingKey;
+        connecting = null;
+        connectingKey = null;
+        connectionKey.interestOps(SelectionKey.OP_READ);
+        connectedNanos = System.nanoTime();
+        receivedPacket = false;
+        // goes out ahead of anything queued while disconnected
+        outgoingPackets.addFirst(HELLO);
+        selector.wakeup();
+        LOGGER.info("Connected to " + addr + ":" + port);
+        setState(ConnectionState.CONNECTED);
+    }
+
+    /**
+     * Schedules the next attempt after a jittered, exponentially growing
+     * delay.
+     */
+    private void connectFailed(String reason) {
+        long backoff = Math.min(MAX_BACKOFF,
+                (long) MIN_BACKOFF << Math.min(failedConnects, 20));
+        failedConnects++;
+        // somewhere in the upper half, so clients don't retry in lockstep
+        long delay = backoff / 2
+                + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        reconnectNanos =
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        LOGGER.debug("Connecting to " + addr + ":" + port + " failed ("
+                + reason + "), retrying in " + delay + " ms");
+        setState(ConnectionState.BACKING_OFF);
+    }
+
+    /**
+     * Drops any connection attempt in progress.
+     */
+    private void abandonConnect() {
+        resolving = null;
+        if (connecting != null) {
             try {
-                // toss packets!
-                while (!incomingPackets.isEmpty()) {
-                    incomingPackets.removeFirst();
-                }
-                incomingPackets.addLast(Packets.readPacket(in));
-            } finally {
-                inPacketLock.unlock();
+                connecting.close();
+            } catch (IOException e) {
+                // nothing was sent on it
             }
+            connecting = null;
+            connectingKey = null;
+        }
+    }
+
+    private void setState(ConnectionState state) {
+        if (this.state == state) {
+            return;
+        }
+        this.state = state;
+        for (Consumer<ConnectionState> listener : stateListeners) {
+            listener.accept(state);
         }
-        if (!anyRead) {
+    }
+
+    private void waitMillis(long millis) throws IOException {
+        selector.select(Math.max(1, millis));
+        selector.selectedKeys().clear();
+    }
+
+    private static long toMillisRoundingUp(long nanos) {
+        return (nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1)
+                / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private void readPackets() throws IOException {
+        receiveNanos = System.nanoTime();
+        int read = packetReader.read(connection, this::addIncomingPacket);
+        if (read < 0) {
+            LOGGER.info("Disconnecting due to end of stream");
+            disconnect();
+            return;
+        }
+        if (read == 0) {
             if (idleSet && idleNanos < System.nanoTime()) {
                 // expire socket
                 LOGGER.info("Disconnecting due to idle timeout");
@@ -214,24 +504,67 @@ public class NetworkManager {
         }
     }
 
+    private void onHello(Hello hello) {
+        serverHello = hello;
+        LOGGER.info("Server speaks protocol " + hello.getProtocolVersion()
+                + ", sends " + hello.getEncodingsList());
+        if (hello.getProtocolVersion() > Packets.PROTOCOL_VERSION) {
+            LOGGER.warn("Server protocol is newer than ours ("
+                    + Packets.PROTOCOL_VERSION + ")");
+        }
+    }
+
+    private void addIncomingPacket(Any packet) {
+        receivedPacket = true;
+        try {
+            if (dispatcher.dispatch(packet)) {
+                return;
+            }
+        } catch (InvalidProtocolBufferException e) {
+            LOGGER.warn("Dropping malformed " + packet.getTypeUrl(), e);
+            return;
+        }
+        Mailbox<Any> mailbox = incomingPackets.computeIfAbsent(
+                Packets.typeName(packet),
+                k -> Mailbox.fifo(DEFAULT_MAILBOX_CAPACITY));
+        if (!mailbox.offer(packet)) {
+            long dropped = mailbox.getDroppedCount();
+            // at 1, 2, 4, 8..., so later overflows still show up without
+            // flooding the log
+            if (Long.bitCount(dropped) == 1) {
+                LOGGER.warn("Mailbox for " + packet.getTypeUrl()
+                        + " is full, dropped " + dropped + " so far");
+            }
+        }
+    }
+
     private void writePackets() throws IOException {
         if (connection == null) {
             return;
         }
-        OutputStream out = connection.getOutputStream();
-        outPacketLock.lock();
-        try {
-            while (!outgoingPackets.isEmpty()) {
-                Message p = outgoingPackets.removeFirst();
-                Packets.writePacket(out, p);
+        while (pendingWrite != null || !outgoingPackets.isEmpty()) {
+            if (pendingWrite == null) {
+                pendingWrite =
+                        Packets.encodePacket(outgoingPackets.removeFirst());
             }
-        } finally {
-            outPacketLock.unlock();
+            connection.write(pendingWrite);
+            if (pendingWrite.hasRemaining()) {
+                // socket buffer full, wait until it's writable again
+                connectionKey.interestOps(
+                        SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrite = null;
         }
+        connectionKey.interestOps(SelectionKey.OP_READ);
     }
 
     private void disconnect() {
-        connLock.lock();
+        // servers from before the hello still send frames, so any packet
+        // shows the connection worked
+        boolean used = receivedPacket || System.nanoTime()
+                - connectedNanos > TimeUnit.MILLISECONDS
+                        .toNanos(HEALTHY_CONNECTION);
         try {
             if (connection != null) {
                 connection.close();
@@ -240,10 +573,20 @@ public class NetworkManager {
             // LOGGER.warn("Error closing connection", e);
         } finally {
             idleSet = false;
+            serverHello = null;
             connection = null;
-            reconnectNanos = System.nanoTime()
-                    + TimeUnit.MILLISECONDS.toNanos(RECONNECT_TIMEOUT);
-            connLock.unlock();
+            connectionKey = null;
+            pendingWrite = null;
+            packetReader.reset();
+            if (used) {
+                // the server may be back already, e.g. after a restart
+                failedConnects = 0;
+                reconnectNanos = 0;
+                setState(ConnectionState.CONNECTING);
+            } else {
+                // don't spin on a server that accepts and then hangs up
+                connectFailed("closed before anything was received");
+            }
         }
     }
 
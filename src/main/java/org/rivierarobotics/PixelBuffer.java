@@ -0,0 +1,90 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Decoded frame pixels, packed as 3-byte RGB. That is the layout the JPEG
+ * decoder produces natively and one JavaFX can copy from directly, so
+ * nothing gets converted in between. Meant to be pooled and decoded into
+ * again rather than reallocated for every frame.
+ */
+public final class PixelBuffer {
+
+    private static final int[] RGB_OFFSETS = { 0, 1, 2 };
+    private static final ComponentColorModel RGB_MODEL =
+            new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                    false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    private final BufferedImage image;
+    private final byte[] pixels;
+
+    public PixelBuffer(int width, int height) {
+        WritableRaster raster = Raster.createInterleavedRaster(
+                DataBuffer.TYPE_BYTE, width, height, width * 3, 3,
+                RGB_OFFSETS, null);
+        this.image = new BufferedImage(RGB_MODEL, raster, false, null);
+        this.pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * @return the pixels, row by row with no padding
+     */
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    public int getScanlineStride() {
+        return getWidth() * 3;
+    }
+
+    public boolean hasSize(int width, int height) {
+        return getWidth() == width && getHeight() == height;
+    }
+
+    /**
+     * The AWT image sharing this buffer's pixels, for decoding into.
+     */
+    BufferedImage getImage() {
+        return image;
+    }
+
+}
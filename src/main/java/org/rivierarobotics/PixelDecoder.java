@@ -0,0 +1,133 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import org.rivierarobotics.protos.Packet.Frame;
+
+/**
+ * Decodes JPEG frames straight into a reused {@link PixelBuffer}. Not
+ * thread-safe, give each decoding thread its own.
+ */
+public class PixelDecoder {
+
+    private final ImageReader reader;
+    private final ImageReadParam param;
+
+    public PixelDecoder() {
+        Iterator<ImageReader> readers =
+                ImageIO.getImageReadersByFormatName("jpeg");
+        if (!readers.hasNext()) {
+            throw new IllegalStateException("No JPEG reader available");
+        }
+        this.reader = readers.next();
+        this.param = reader.getDefaultReadParam();
+    }
+
+    /**
+     * Decodes {@code frame} into {@code reuse} if it has the right size, or
+     * into a new buffer if it doesn't or is {@code null}.
+     * 
+     * @return the buffer holding the decoded frame
+     */
+    public PixelBuffer decode(Frame frame, PixelBuffer reuse)
+            throws IOException {
+        try (ByteBufferImageInputStream stream =
+                new ByteBufferImageInputStream(
+                        FrameDecoder.getJpeg(frame).asReadOnlyByteBuffer())) {
+            reader.setInput(stream, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            PixelBuffer target = reuse != null && reuse.hasSize(width, height)
+                    ? reuse
+                    : new PixelBuffer(width, height);
+            param.setDestination(target.getImage());
+            reader.read(0, param);
+            return target;
+        } finally {
+            reader.setInput(null);
+            param.setDestination(null);
+        }
+    }
+
+    /**
+     * Reads the frame bytes in place, where the stock streams would copy them
+     * into a cache first.
+     */
+    private static final class ByteBufferImageInputStream
+            extends ImageInputStreamImpl {
+
+        private final ByteBuffer data;
+
+        ByteBufferImageInputStream(ByteBuffer data) {
+            // a received frame aliases its packet, so its bytes start at the
+            // buffer's position rather than at 0
+            this.data = data.slice();
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= data.limit()) {
+                return -1;
+            }
+            return data.get((int) streamPos++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+            int remaining = data.limit() - (int) streamPos;
+            if (remaining <= 0) {
+                return -1;
+            }
+            len = Math.min(len, remaining);
+            data.position((int) streamPos);
+            data.get(b, off, len);
+            streamPos += len;
+            return len;
+        }
+
+        @Override
+        public long length() {
+            return data.limit();
+        }
+
+    }
+
+}
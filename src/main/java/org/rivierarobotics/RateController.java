@@ -0,0 +1,214 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.util.Optional;
+
+import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Feedback;
+import org.rivierarobotics.protos.Packet.Hello;
+import org.slf4j.Logger;
+
+/**
+ * Tells the server how a stream is keeping up, once a second, and asks it to
+ * send less when the client can't keep up. When frames are being dropped or
+ * the recorder falls behind, limits back off multiplicatively: the frame rate
+ * down to {@value #QUALITY_FPS} fps, then the quality, then the frame rate
+ * again. After a few clean periods they creep back up additively in the
+ * reverse order, until no limit is left.
+ */
+public class RateController {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final long PERIOD_MILLIS = 1000;
+    /**
+     * Share of received frames that may be dropped before we back off.
+     */
+    private static final double MAX_DROPPED_SHARE = 0.1;
+    /**
+     * Recorder backlog, in frames, that counts as falling behind.
+     */
+    private static final int MAX_BEHIND_FRAMES = 30;
+    /**
+     * Clean periods needed before each step back up.
+     */
+    private static final int HEADROOM_PERIODS = 3;
+    private static final double MIN_FPS = 5;
+    /**
+     * Frame rate given up before any quality is.
+     */
+    private static final double QUALITY_FPS = 15;
+    private static final double FPS_BACKOFF = 0.75;
+    private static final double FPS_STEP = 2;
+    private static final int MIN_QUALITY = 30;
+    private static final int MAX_QUALITY = 100;
+    private static final double QUALITY_BACKOFF = 0.8;
+    private static final int QUALITY_STEP = 5;
+
+    private final NetworkManager network;
+    private final FrameRequester requester;
+    private final FrameRecorder recorder;
+    private final ThreadLoop loop = new ThreadLoop("RateController",
+            this::update, PERIOD_MILLIS, ThreadLoop.Mode.FIXED_RATE);
+    private volatile FrameDisplay display;
+    private volatile boolean adaptive = true;
+    private volatile String requestSummary = "full rate";
+    // only touched by the loop
+    private Hello lastHello;
+    private long lastNanos = System.nanoTime();
+    private long lastReceived;
+    private long lastBytes;
+    private long lastDropped;
+    private long lastShown;
+    private double maxFps;
+    private int quality;
+    private int cleanPeriods;
+
+    public RateController(NetworkManager network, FrameRequester requester,
+            FrameRecorder recorder) {
+        this.network = network;
+        this.requester = requester;
+        this.recorder = recorder;
+    }
+
+    public void start() {
+        loop.start();
+    }
+
+    /**
+     * Also watches {@code display} for frames it had to skip.
+     */
+    public void setDisplay(FrameDisplay display) {
+        this.display = display;
+    }
+
+    /**
+     * When off, only reports, and asks for the full rate and quality.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return what the server was last asked for, for showing to the user
+     */
+    public String getRequestSummary() {
+        return requestSummary;
+    }
+
+    private void update() {
+        FrameDisplay display = this.display;
+        long now = System.nanoTime();
+        long received = requester.getReceivedFrameCount();
+        long bytes = requester.getReceivedByteCount();
+        long dropped = requester.getSkippedFrameCount()
+                + (display == null ? 0 : display.getSkippedFrameCount());
+        long shown = display == null ? 0 : display.getShownFrameCount();
+        double seconds = (now - lastNanos) / 1e9;
+        long periodReceived = received - lastReceived;
+        long periodDropped = dropped - lastDropped;
+        double receivedFps = periodReceived / seconds;
+        Feedback.Builder feedback = Feedback.newBuilder()
+                .setReceivedFps((float) receivedFps)
+                .setDisplayedFps((float) ((shown - lastShown) / seconds))
+                .setQueueDepth(recorder.getBehindFramesCount())
+                .setReceivedBytesPerSecond(
+                        (long) ((bytes - lastBytes) / seconds));
+        lastNanos = now;
+        lastReceived = received;
+        lastBytes = bytes;
+        lastDropped = dropped;
+        lastShown = shown;
+
+        Optional<Hello> hello = network.getServerHello().filter(
+                h -> h.getProtocolVersion() >= Packets.FEEDBACK_VERSION);
+        if (!hello.isPresent()) {
+            lastHello = null;
+            return;
+        }
+        if (hello.get() != lastHello) {
+            // new connection, the numbers so far were for the old one
+            lastHello = hello.get();
+            setLimits(0, 0, "new connection");
+            return;
+        }
+        if (!adaptive) {
+            setLimits(0, 0, "adapting off");
+        } else if (periodDropped > periodReceived * MAX_DROPPED_SHARE
+                || feedback.getQueueDepth() > MAX_BEHIND_FRAMES) {
+            backOff(receivedFps, String.format(
+                    "dropped %d of %d frames, %d behind", periodDropped,
+                    periodReceived, feedback.getQueueDepth()));
+        } else if (periodReceived > 0 && ++cleanPeriods >= HEADROOM_PERIODS) {
+            stepUp(receivedFps);
+        }
+        network.sendMessage(feedback.setMaxFps((float) maxFps)
+                .setQuality(quality).build());
+    }
+
+    private void backOff(double receivedFps, String reason) {
+        double fps = (maxFps == 0 ? receivedFps
+                : Math.min(maxFps, receivedFps)) * FPS_BACKOFF;
+        if (maxFps == 0 || maxFps > QUALITY_FPS) {
+            setLimits(Math.max(QUALITY_FPS, fps), quality, reason);
+        } else if (quality == 0 || quality > MIN_QUALITY) {
+            int current = quality == 0 ? MAX_QUALITY : quality;
+            setLimits(maxFps,
+                    Math.max(MIN_QUALITY, (int) (current * QUALITY_BACKOFF)),
+                    reason);
+        } else {
+            setLimits(Math.max(MIN_FPS, fps), quality, reason);
+        }
+    }
+
+    private void stepUp(double receivedFps) {
+        if (maxFps != 0 && (maxFps < QUALITY_FPS || quality == 0)) {
+            // the source itself is slower than the limit, it's not needed
+            double fps = receivedFps < maxFps - FPS_STEP ? 0
+                    : maxFps + FPS_STEP;
+            setLimits(fps, quality, "headroom");
+        } else if (quality != 0) {
+            int next = quality + QUALITY_STEP;
+            setLimits(maxFps, next >= MAX_QUALITY ? 0 : next, "headroom");
+        }
+    }
+
+    private void setLimits(double maxFps, int quality, String reason) {
+        cleanPeriods = 0;
+        if (maxFps == this.maxFps && quality == this.quality) {
+            return;
+        }
+        this.maxFps = maxFps;
+        this.quality = quality;
+        requestSummary = maxFps == 0 && quality == 0 ? "full rate"
+                : String.format("%s, %s",
+                        maxFps == 0 ? "full fps"
+                                : String.format("%.0f fps", maxFps),
+                        quality == 0 ? "full quality" : "quality " + quality);
+        LOGGER.info("Asking for " + requestSummary + " (" + reason + ")");
+    }
+
+}
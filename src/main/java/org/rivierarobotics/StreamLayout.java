@@ -0,0 +1,166 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.ListChangeListener;
+import javafx.scene.Node;
+import javafx.scene.layout.Pane;
+
+/**
+ * Lays out one child per stream, either as an even grid or as one large
+ * child with the others inset along its bottom edge. Children are always
+ * given exactly their cell, whatever size they'd prefer, and keep the order
+ * they were added in even when the large one is moved to the back.
+ */
+public class StreamLayout extends Pane {
+
+    public enum Mode {
+        TILED, PICTURE_IN_PICTURE;
+    }
+
+    private static final double GAP = 4;
+    /**
+     * Size of an inset, as a fraction of the layout.
+     */
+    private static final double INSET_SCALE = 0.25;
+
+    private final ObjectProperty<Mode> mode =
+            new SimpleObjectProperty<>(this, "mode", Mode.TILED);
+    private final ObjectProperty<Node> primary =
+            new SimpleObjectProperty<>(this, "primary");
+    private final List<Node> order = new ArrayList<>();
+
+    public StreamLayout() {
+        setMinSize(0, 0);
+        getChildren().addListener((ListChangeListener<Node>) c -> {
+            while (c.next()) {
+                if (c.wasPermutated()) {
+                    continue;
+                }
+                order.removeAll(c.getRemoved());
+                order.addAll(c.getAddedSubList());
+            }
+        });
+        mode.addListener(obs -> requestLayout());
+        primary.addListener((obs, old, node) -> {
+            if (node != null) {
+                // insets are drawn over it
+                node.toBack();
+            }
+            requestLayout();
+        });
+    }
+
+    public ObjectProperty<Mode> modeProperty() {
+        return mode;
+    }
+
+    public Mode getMode() {
+        return mode.get();
+    }
+
+    public void setMode(Mode mode) {
+        this.mode.set(mode);
+    }
+
+    /**
+     * The child shown large in {@link Mode#PICTURE_IN_PICTURE}, or the first
+     * child if it's {@code null}.
+     */
+    public ObjectProperty<Node> primaryProperty() {
+        return primary;
+    }
+
+    public Node getPrimary() {
+        return primary.get();
+    }
+
+    public void setPrimary(Node primary) {
+        this.primary.set(primary);
+    }
+
+    @Override
+    protected void layoutChildren() {
+        List<Node> children = order.stream().filter(Node::isManaged)
+                .collect(Collectors.toList());
+        if (children.isEmpty()) {
+            return;
+        }
+        double x = snappedLeftInset();
+        double y = snappedTopInset();
+        double width = getWidth() - x - snappedRightInset();
+        double height = getHeight() - y - snappedBottomInset();
+        if (getMode() == Mode.PICTURE_IN_PICTURE) {
+            layoutPictureInPicture(children, x, y, width, height);
+        } else {
+            layoutTiled(children, x, y, width, height);
+        }
+    }
+
+    private void layoutTiled(List<Node> children, double x, double y,
+            double width, double height) {
+        int columns = (int) Math.ceil(Math.sqrt(children.size()));
+        int rows = (children.size() + columns - 1) / columns;
+        double cellWidth = (width - GAP * (columns - 1)) / columns;
+        double cellHeight = (height - GAP * (rows - 1)) / rows;
+        for (int i = 0; i < children.size(); i++) {
+            int column = i % columns;
+            int row = i / columns;
+            children.get(i).resizeRelocate(
+                    snapPosition(x + column * (cellWidth + GAP)),
+                    snapPosition(y + row * (cellHeight + GAP)),
+                    snapSize(cellWidth), snapSize(cellHeight));
+        }
+    }
+
+    private void layoutPictureInPicture(List<Node> children, double x,
+            double y, double width, double height) {
+        Node large = getPrimary();
+        if (large == null || !children.contains(large)) {
+            large = children.get(0);
+        }
+        large.resizeRelocate(x, y, snapSize(width), snapSize(height));
+        double insetWidth = width * INSET_SCALE;
+        double insetHeight = height * INSET_SCALE;
+        // right to left along the bottom, in child order
+        double insetX = x + width - GAP - insetWidth;
+        double insetY = y + height - GAP - insetHeight;
+        for (Node child : children) {
+            if (child == large) {
+                continue;
+            }
+            child.resizeRelocate(snapPosition(insetX), snapPosition(insetY),
+                    snapSize(insetWidth), snapSize(insetHeight));
+            insetX -= insetWidth + GAP;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.StackPane;
+
+/**
+ * Shows one {@link VisionStream}, scaled to fit whatever size it's given,
+ * with its own overlay. Each tile decodes on its own thread, so several
+ * tiles decode in parallel.
+ */
+public class StreamTile extends StackPane {
+
+    private static final String SELECTED_STYLE =
+            "-fx-border-color: yellow; -fx-border-width: 2;";
+
+    private final VisionStream stream;
+    private final ImageView imageView = new ImageView();
+    private final FrameDisplay display;
+    private final FrameOverlay overlay;
+
+    public StreamTile(VisionStream stream) {
+        this.stream = stream;
+        Pane overlayPane = new Pane();
+        getChildren().addAll(imageView, overlayPane);
+        setMinSize(0, 0);
+        overlayPane.setMinSize(0, 0);
+        imageView.setPreserveRatio(true);
+        imageView.fitWidthProperty().bind(widthProperty());
+        imageView.fitHeightProperty().bind(heightProperty());
+        display = new FrameDisplay(imageView,
+                stream.getRequester().getLatency());
+        stream.getRequester().addTimedFrameCallback(display::submit);
+        stream.getRateController().setDisplay(display);
+        overlay = new FrameOverlay(imageView, overlayPane);
+    }
+
+    public void start() {
+        display.start();
+    }
+
+    public VisionStream getStream() {
+        return stream;
+    }
+
+    public FrameOverlay getOverlay() {
+        return overlay;
+    }
+
+    public void setSelected(boolean selected) {
+        setStyle(selected ? SELECTED_STYLE : "");
+    }
+
+}
@@ -24,9 +24,22 @@
  */
 package org.rivierarobotics;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Runs a body repeatedly on its own daemon thread. The wait between runs can
+ * be cut short with {@link #wake()}, and repeated failures back off
+ * exponentially instead of spinning.
+ */
 public class ThreadLoop {
 
     @FunctionalInterface
@@ -36,33 +49,234 @@ public class ThreadLoop {
 
     }
 
+    public enum Mode {
+        /**
+         * Waits the period after each run finishes.
+         */
+        FIXED_DELAY,
+        /**
+         * Starts each run a period after the previous one started. Runs that
+         * take longer than the period are counted as overruns, and the next
+         * run starts immediately without trying to catch up.
+         */
+        FIXED_RATE,
+        /**
+         * Runs only after {@link ThreadLoop#wake()}, or once the period has
+         * passed without a wake if the period is non-zero.
+         */
+        ON_WAKE;
+    }
+
+    /**
+     * Snapshot of a loop's counters.
+     */
+    public static final class Stats {
+
+        private final long iterations;
+        private final long failures;
+        private final long overruns;
+        private final long busyNanos;
+        private final long idleNanos;
+
+        private Stats(long iterations, long failures, long overruns,
+                long busyNanos, long idleNanos) {
+            this.iterations = iterations;
+            this.failures = failures;
+            this.overruns = overruns;
+            this.busyNanos = busyNanos;
+            this.idleNanos = idleNanos;
+        }
+
+        public long getIterations() {
+            return iterations;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return how many runs took longer than the period
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /**
+         * @return total time spent running the body
+         */
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /**
+         * @return total time spent waiting between runs
+         */
+        public long getIdleNanos() {
+            return idleNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "iterations=%d failures=%d overruns=%d busy=%dms idle=%dms",
+                    iterations, failures, overruns,
+                    TimeUnit.NANOSECONDS.toMillis(busyNanos),
+                    TimeUnit.NANOSECONDS.toMillis(idleNanos));
+        }
+
+    }
+
+    private static final long MIN_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
     private final Logger logger;
     private final String name;
     private final RunnableEx loop;
     private final long millisPeriod;
+    private final Mode mode;
+    private final AtomicBoolean wakeRequested = new AtomicBoolean();
+    private final AtomicLong iterations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong idleNanos = new AtomicLong();
+    private volatile boolean stopRequested;
+    private volatile Thread thread;
 
     public ThreadLoop(String name, RunnableEx loop, long millisPeriod) {
+        this(name, loop, millisPeriod, Mode.FIXED_DELAY);
+    }
+
+    public ThreadLoop(String name, RunnableEx loop, long millisPeriod,
+            Mode mode) {
+        checkArgument(millisPeriod >= 0, "period cannot be negative");
         this.name = name;
         this.loop = loop;
         this.millisPeriod = millisPeriod;
+        this.mode = mode;
         this.logger = LoggerFactory.getLogger(name);
     }
 
     public Thread start() {
-        Thread thread = new Thread(() -> {
-            while (!Thread.interrupted()) {
-                try {
-                    loop.run();
-                    Thread.sleep(millisPeriod);
-                } catch (Exception e) {
-                    logger.warn("Error from loop", e);
-                }
-            }
-        });
+        checkState(thread == null, "already started");
+        Thread thread = new Thread(this::runLoop);
         thread.setName(name + " Loop");
         thread.setDaemon(true);
+        this.thread = thread;
         thread.start();
         return thread;
     }
 
+    /**
+     * Cuts the current wait short, or runs the body again right away if it is
+     * running now. Safe to call from any thread.
+     */
+    public void wake() {
+        if (!wakeRequested.getAndSet(true)) {
+            Thread t = thread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /**
+     * Stops the loop once the current run, if any, finishes.
+     */
+    public void stop() {
+        stopRequested = true;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(iterations.get(), failures.get(), overruns.get(),
+                busyNanos.get(), idleNanos.get());
+    }
+
+    private boolean isStopped() {
+        return stopRequested || Thread.currentThread().isInterrupted();
+    }
+
+    private void runLoop() {
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(millisPeriod);
+        int consecutiveFailures = 0;
+        long nextStart = System.nanoTime();
+        if (mode == Mode.ON_WAKE) {
+            waitUntil(millisPeriod == 0 ? Long.MAX_VALUE
+                    : nextStart + periodNanos, true);
+        }
+        while (!isStopped()) {
+            wakeRequested.set(false);
+            long start = System.nanoTime();
+            try {
+                loop.run();
+                consecutiveFailures = 0;
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                consecutiveFailures++;
+                logger.warn("Error from loop", e);
+            }
+            long end = System.nanoTime();
+            iterations.incrementAndGet();
+            busyNanos.addAndGet(end - start);
+            if (periodNanos > 0 && end - start > periodNanos) {
+                overruns.incrementAndGet();
+            }
+
+            if (consecutiveFailures > 0) {
+                long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                        Math.max(MIN_BACKOFF_MILLIS, millisPeriod) << Math
+                                .min(consecutiveFailures - 1, 16));
+                // don't let wakes defeat the backoff
+                waitUntil(end + TimeUnit.MILLISECONDS.toNanos(backoff), false);
+                nextStart = System.nanoTime();
+                continue;
+            }
+            switch (mode) {
+                case FIXED_DELAY:
+                    waitUntil(end + periodNanos, true);
+                    break;
+                case FIXED_RATE:
+                    nextStart += periodNanos;
+                    if (nextStart - end < 0) {
+                        // fell behind, don't burst to catch up
+                        nextStart = end;
+                    }
+                    waitUntil(nextStart, true);
+                    break;
+                case ON_WAKE:
+                    waitUntil(millisPeriod == 0 ? Long.MAX_VALUE
+                            : end + periodNanos, true);
+                    break;
+                default:
+                    throw new IllegalStateException(mode.toString());
+            }
+        }
+        logger.debug("Loop stopped ({})", getStats());
+    }
+
+    /**
+     * Parks until {@code deadline}, or until woken if {@code wakeable}. A
+     * deadline of {@link Long#MAX_VALUE} waits indefinitely.
+     */
+    private void waitUntil(long deadline, boolean wakeable) {
+        long start = System.nanoTime();
+        while (!isStopped() && !(wakeable && wakeRequested.get())) {
+            if (deadline == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        idleNanos.addAndGet(System.nanoTime() - start);
+    }
+
 }
@@ -0,0 +1,113 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rivierarobotics.protos.Packet.Frame;
+
+/**
+ * A frame and the {@link System#nanoTime()} it reached each stage of the
+ * client at. Each stamp is written by the stage's own thread before the frame
+ * is handed on, so the hand-off publishes it.
+ * 
+ * <p>
+ * Stages that are still working on the frame after their callback returns
+ * {@link #hold()} it until they're done with it, shown or dropped, and the
+ * frame counts as consumed once every hold is released.
+ */
+public final class TimedFrame {
+
+    private final Frame frame;
+    private final long receivedNanos;
+    // the dispatcher's own hold
+    private final AtomicInteger holds = new AtomicInteger(1);
+    private final Runnable onConsumed;
+    private long dispatchedNanos;
+    private long decodedNanos;
+
+    public TimedFrame(Frame frame, long receivedNanos) {
+        this(frame, receivedNanos, null);
+    }
+
+    /**
+     * @param onConsumed
+     *            - run once every hold is released, may be {@code null}
+     */
+    public TimedFrame(Frame frame, long receivedNanos, Runnable onConsumed) {
+        this.frame = frame;
+        this.receivedNanos = receivedNanos;
+        this.onConsumed = onConsumed;
+    }
+
+    public Frame getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return when the frame was read off the socket
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * @return when the frame was handed to the frame callbacks
+     */
+    public long getDispatchedNanos() {
+        return dispatchedNanos;
+    }
+
+    void markDispatched(long nanos) {
+        dispatchedNanos = nanos;
+    }
+
+    /**
+     * @return when the frame finished decoding, 0 if it hasn't
+     */
+    public long getDecodedNanos() {
+        return decodedNanos;
+    }
+
+    void markDecoded(long nanos) {
+        decodedNanos = nanos;
+    }
+
+    /**
+     * Keeps the frame from counting as consumed until a matching
+     * {@link #release()}. Only call it while already holding the frame, i.e.
+     * from a frame callback.
+     */
+    public void hold() {
+        holds.incrementAndGet();
+    }
+
+    public void release() {
+        if (holds.decrementAndGet() == 0 && onConsumed != null) {
+            onConsumed.run();
+        }
+    }
+
+}
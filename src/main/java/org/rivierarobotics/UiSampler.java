@@ -0,0 +1,91 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.util.Duration;
+
+/**
+ * Publishes values owned by other threads to the UI at a fixed rate. Sampling
+ * happens on the JavaFX thread, and properties only change, and so only
+ * notify their listeners, when the sampled value does.
+ */
+public class UiSampler {
+
+    private final List<Runnable> samples = new CopyOnWriteArrayList<>();
+    private final Timeline timeline;
+
+    public UiSampler(Duration period) {
+        timeline = new Timeline(
+                new KeyFrame(period, e -> samples.forEach(Runnable::run)));
+        timeline.setCycleCount(Animation.INDEFINITE);
+    }
+
+    /**
+     * @param source
+     *            - polled on the JavaFX thread, so it must be cheap and
+     *            thread-safe
+     * @return a property following {@code source}
+     */
+    public ReadOnlyIntegerProperty sampleInt(IntSupplier source) {
+        ReadOnlyIntegerWrapper property =
+                new ReadOnlyIntegerWrapper(source.getAsInt());
+        samples.add(() -> property.set(source.getAsInt()));
+        return property.getReadOnlyProperty();
+    }
+
+    /**
+     * @param source
+     *            - polled on the JavaFX thread, so it must be cheap and
+     *            thread-safe
+     * @return a property following {@code source}
+     */
+    public <T> ReadOnlyObjectProperty<T> sample(Supplier<T> source) {
+        ReadOnlyObjectWrapper<T> property =
+                new ReadOnlyObjectWrapper<>(source.get());
+        samples.add(() -> property.set(source.get()));
+        return property.getReadOnlyProperty();
+    }
+
+    public void start() {
+        timeline.play();
+    }
+
+    public void stop() {
+        timeline.stop();
+    }
+
+}
@@ -25,6 +25,7 @@
 package org.rivierarobotics;
 
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 
@@ -39,7 +40,11 @@ public class VisionClient extends Application {
     
     private static final Logger LOGGER = LoggerUtil.callingClassLogger();
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessClient.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         LOGGER.info("Starting VisionClient...");
         Application.launch(args);
     }
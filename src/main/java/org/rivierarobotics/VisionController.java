@@ -24,39 +24,33 @@
  */
 package org.rivierarobotics;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.imageio.ImageIO;
-
-import org.rivierarobotics.protos.Packet.Frame;
 import org.rivierarobotics.protos.Packet.Signal;
 import org.slf4j.Logger;
 
 import com.sun.javafx.binding.StringFormatter;
 
-import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.ReadOnlyIntegerProperty;
 import javafx.beans.value.ObservableValue;
 import javafx.beans.value.ObservableValueBase;
 import javafx.fxml.FXML;
+import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
-import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Line;
+import javafx.util.Duration;
 
 public class VisionController {
 
@@ -64,11 +58,41 @@ public class VisionController {
 
     private static final Path ADDRESS_FILE =
             Paths.get(System.getProperty("user.home"), ".vision5818_address");
-    private final NetworkManager network = new NetworkManager();
-    private final FrameRequester requester = new FrameRequester(network);
-    private final FrameRecorder recorder = new FrameRecorder(requester);
+    /**
+     * Number of cameras to show, each with its own connection and recorder.
+     */
+    private static final int STREAM_COUNT =
+            Math.max(1, Integer.getInteger("vc2017.streams", 1));
+    /**
+     * Whether to ask servers for less when we can't keep up.
+     */
+    private static final boolean ADAPTIVE = Boolean.parseBoolean(
+            System.getProperty("vc2017.adaptive", "true"));
+    /**
+     * Frames servers may have in flight to each stream, 0 to let them push.
+     */
+    private static final int CREDIT_WINDOW = Integer.getInteger(
+            "vc2017.creditWindow", FrameRequester.DEFAULT_CREDIT_WINDOW);
+    /**
+     * Port to re-serve the first stream to other screens on, 0 to not relay.
+     */
+    private static final int RELAY_PORT =
+            Integer.getInteger("vc2017.relayPort", 0);
+    /**
+     * Port to serve the first stream to browsers on, 0 to not serve it.
+     */
+    private static final int MJPEG_PORT =
+            Integer.getInteger("vc2017.mjpegPort", 0);
+    private final List<StreamTile> tiles = new ArrayList<>();
+    private final UiSampler uiSampler = new UiSampler(Duration.millis(100));
+    // only touched on the JavaFX thread
+    private StreamTile selected;
+    @FXML
+    private StreamLayout streamLayout;
+    @FXML
+    private Label streamText;
     @FXML
-    private ImageView imageView;
+    private Button layoutButton;
     @FXML
     private Label sourceText;
     @FXML
@@ -78,106 +102,159 @@ public class VisionController {
     @FXML
     private CheckBox crossCheckBox;
     @FXML
+    private Label connectionText;
+    @FXML
     private Label statusLabel;
     private String originalSourceText;
+    private String originalStreamText;
 
     private void setSourceText(Source source) {
         sourceText.setText(originalSourceText + source.toString());
     }
 
-    private void loadImage(Frame frame) {
-        try (InputStream in = FrameDecoder.getJpegStreamFromFrame(frame)) {
-            InputStream finalStream = in;
-            if (crossCheckBox.isSelected()) {
-                // Load via AWT to draw with graphics
-                BufferedImage image = ImageIO.read(in);
-                Graphics2D g = image.createGraphics();
-                g.setColor(Color.CYAN);
-                int w = image.getWidth();
-                int h = image.getHeight();
-                g.drawLine(w / 2, 0, w / 2, h);
-                g.drawLine(0, h / 2, w, h / 2);
-                ByteArrayOutputStream cap = new ByteArrayOutputStream();
-                ImageIO.write(image, "PNG", cap);
-                finalStream = new ByteArrayInputStream(cap.toByteArray());
-            }
-            Image image = new Image(finalStream, 0, 0, true, true);
-            Platform.runLater(() -> {
-                imageView.setImage(image);
-                imageView.getParent().applyCss();
-                imageView.getParent().layout();
-            });
-        } catch (IOException e) {
-            LOGGER.warn("Failed to load image from frame", e);
-        }
+    private Path addressFile(VisionStream stream) {
+        // the first stream keeps the address saved by a single-stream client
+        return stream == tiles.get(0).getStream() ? ADDRESS_FILE
+                : ADDRESS_FILE.resolveSibling(ADDRESS_FILE.getFileName() + "_"
+                        + stream.getName());
     }
 
     @FXML
     public void initialize() {
         originalSourceText = sourceText.getText();
-        setSourceText(requester.getSource());
-        requester.addFrameCallback(this::loadImage);
+        originalStreamText = streamText.getText();
+        for (int i = 0; i < STREAM_COUNT; i++) {
+            VisionStream stream = new VisionStream(
+                    STREAM_COUNT == 1 ? "" : "cam" + (i + 1));
+            stream.getRateController().setAdaptive(ADAPTIVE);
+            stream.getRequester().setCreditWindow(CREDIT_WINDOW);
+            StreamTile tile = new StreamTile(stream);
+            tile.setOnMouseClicked(e -> select(tile));
+            tiles.add(tile);
+            streamLayout.getChildren().add(tile);
+            tile.start();
+            readAddress(stream);
+        }
+        streamText.setVisible(STREAM_COUNT > 1);
+        streamText.setManaged(STREAM_COUNT > 1);
+        layoutButton.setVisible(STREAM_COUNT > 1);
+        layoutButton.setManaged(STREAM_COUNT > 1);
+        FrameRequester requester = tiles.get(0).getStream().getRequester();
+        if (RELAY_PORT > 0) {
+            try {
+                FrameRelay relay =
+                        new FrameRelay(new InetSocketAddress(RELAY_PORT));
+                requester.addFrameCallback(relay::submit);
+                relay.start();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to start frame relay", e);
+            }
+        }
+        if (MJPEG_PORT > 0) {
+            try {
+                MjpegServer mjpeg =
+                        new MjpegServer(new InetSocketAddress(MJPEG_PORT));
+                requester.addFrameCallback(mjpeg::submit);
+                mjpeg.clearOnDisconnect(tiles.get(0).getStream().getNetwork());
+                mjpeg.start();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to start MJPEG server", e);
+            }
+        }
+        select(tiles.get(0));
+
+        // set status to "Frames behind: " + n, then the recent latency and
+        // what we asked the server for, all for the selected stream
+        statusLabel.textProperty().bind(Bindings.format(
+                "Frames behind: %d    Latency: %s    Asking: %s",
+                uiSampler.sampleInt(() -> selected.getStream().getRecorder()
+                        .getBehindFramesCount()),
+                uiSampler.sample(() -> selected.getStream().getRequester()
+                        .getLatency().getRecentTotal()),
+                uiSampler.sample(() -> selected.getStream()
+                        .getRateController().getRequestSummary())));
+        connectionText.textProperty().bind(Bindings.format("Connection: %s",
+                uiSampler.sample(() -> selected.getStream().getNetwork()
+                        .getConnectionState())));
+        uiSampler.start();
+
+        for (StreamTile tile : tiles) {
+            FrameOverlay overlay = tile.getOverlay();
+            for (Line line : new Line[] {
+                    overlay.addGuideLine(0.5, 0, 0.5, 1),
+                    overlay.addGuideLine(0, 0.5, 1, 0.5) }) {
+                line.setStroke(Color.CYAN);
+                line.visibleProperty().bind(crossCheckBox.selectedProperty());
+            }
+        }
+    }
+
+    private void readAddress(VisionStream stream) {
+        Path file = addressFile(stream);
         try {
-            if (Files.exists(ADDRESS_FILE)) {
+            if (Files.exists(file)) {
                 String s = StandardCharsets.UTF_8
-                        .decode(ByteBuffer
-                                .wrap(Files.readAllBytes(ADDRESS_FILE)))
+                        .decode(ByteBuffer.wrap(Files.readAllBytes(file)))
                         .toString();
-                setAddress(s, false);
+                stream.setAddress(s);
             }
         } catch (IOException e) {
             LOGGER.warn("Failed to read address file", e);
         }
+    }
 
-        // set status to "Frames behind: " + n
-        statusLabel.textProperty().bind(Bindings.format("Frames behind: %d",
-                recorder.behindFramesCountProperty()));
-
-        // resize image view to fit parent
-        imageView.fitHeightProperty()
-                .bind(((Pane) imageView.getParent()).heightProperty());
+    /**
+     * Points the controls at {@code tile}'s stream.
+     */
+    private void select(StreamTile tile) {
+        if (selected != null) {
+            selected.setSelected(false);
+        }
+        selected = tile;
+        tile.setSelected(tiles.size() > 1);
+        streamLayout.setPrimary(tile);
+        VisionStream stream = tile.getStream();
+        streamText.setText(originalStreamText + stream.getName());
+        setSourceText(stream.getRequester().getSource());
+        recordCheckBox.setSelected(stream.getRecorder().isRecording());
+        NetworkManager network = stream.getNetwork();
+        address.setText(network.getAddr() == null ? ""
+                : network.getAddr() + ":" + network.getPort());
     }
 
-    private void setAddress(String s, boolean fromField) {
-        String[] parts = s.split(":", 2);
-        int port;
-        try {
-            port = Integer.parseInt(parts[1]);
-        } catch (NumberFormatException nfe) {
+    private void setAddress(String s) {
+        VisionStream stream = selected.getStream();
+        if (!stream.setAddress(s)) {
             return;
         }
-        network.setAddr(parts[0]);
-        network.setPort(port);
-
-        if (fromField) {
-            try {
-                Files.write(ADDRESS_FILE, s.getBytes(StandardCharsets.UTF_8));
-            } catch (IOException e) {
-                LOGGER.warn("Failed to write address file");
-            }
-        } else {
-            address.setText(s);
+        try {
+            Files.write(addressFile(stream),
+                    s.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write address file");
         }
     }
 
     public Source getSource() {
-        return requester.getSource();
+        return selected.getStream().getRequester().getSource();
     }
 
     @FXML
     public void switchSource() {
+        FrameRequester requester = selected.getStream().getRequester();
         requester.setSource(requester.getSource().other());
         setSourceText(requester.getSource());
     }
 
     @FXML
     public void switchFeed() {
-        network.sendMessage(
+        selected.getStream().getNetwork().sendMessage(
                 Signal.newBuilder().setType(Signal.Type.SWITCH_FEED).build());
     }
 
     @FXML
     public void switchRecording() {
+        FrameRecorder recorder = selected.getStream().getRecorder();
         boolean rec = recordCheckBox.isSelected();
         if (rec) {
             recorder.startRecording();
@@ -188,8 +265,15 @@ public class VisionController {
         recordCheckBox.setSelected(recorder.isRecording());
     }
 
+    @FXML
+    public void switchLayout() {
+        boolean tiled = streamLayout.getMode() == StreamLayout.Mode.TILED;
+        streamLayout.setMode(tiled ? StreamLayout.Mode.PICTURE_IN_PICTURE
+                : StreamLayout.Mode.TILED);
+    }
+
     @FXML
     public void onAddressSet() {
-        setAddress(address.getText(), true);
+        setAddress(address.getText());
     }
 }
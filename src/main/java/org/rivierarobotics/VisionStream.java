@@ -0,0 +1,95 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics;
+
+/**
+ * One camera: its connection, the source it asks for, its recorder and the
+ * controller asking the server for a rate the client can keep up with. Each
+ * stream has its own threads, so streams never wait on each other.
+ */
+public class VisionStream {
+
+    private final String name;
+    private final NetworkManager network = new NetworkManager();
+    private final FrameRequester requester = new FrameRequester(network);
+    private final FrameRecorder recorder;
+    private final RateController rateController;
+
+    /**
+     * @param name
+     *            - tells streams apart in the UI and in recording names. May
+     *            be empty when there's only one.
+     */
+    public VisionStream(String name) {
+        this.name = name;
+        this.recorder = new FrameRecorder(requester, name);
+        this.rateController =
+                new RateController(network, requester, recorder);
+        rateController.start();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public NetworkManager getNetwork() {
+        return network;
+    }
+
+    public FrameRequester getRequester() {
+        return requester;
+    }
+
+    public FrameRecorder getRecorder() {
+        return recorder;
+    }
+
+    public RateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * Connects to {@code address}, given as {@code HOST:PORT}.
+     * 
+     * @return {@code false}, changing nothing, if {@code address} isn't in
+     *         that form
+     */
+    public boolean setAddress(String address) {
+        String[] parts = address.split(":", 2);
+        if (parts.length != 2) {
+            return false;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+        network.setAddr(parts[0]);
+        network.setPort(port);
+        return true;
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.packet;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.rivierarobotics.LoggerUtil;
+import org.slf4j.Logger;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Routes decoded packets to the handlers registered for their type. Lookup is
+ * a single hash on the type name from the packet's type URL.
+ */
+public final class MessageDispatcher {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final class Handler<M extends Message> {
+
+        private final Consumer<M> callback;
+        private final Executor executor;
+
+        private Handler(Consumer<M> callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+    }
+
+    private static final class TypeHandlers<M extends Message> {
+
+        private final Class<M> type;
+        private final List<Handler<M>> handlers = new CopyOnWriteArrayList<>();
+
+        private TypeHandlers(Class<M> type) {
+            this.type = type;
+        }
+
+        private void dispatch(Any packet)
+                throws InvalidProtocolBufferException {
+            // unpack once, shared by every handler
+            M message = Packets.unpack(packet, type);
+            for (Handler<M> handler : handlers) {
+                handler.executor.execute(() -> {
+                    try {
+                        handler.callback.accept(message);
+                    } catch (Exception e) {
+                        LOGGER.warn("Error from " + type.getSimpleName()
+                                + " handler", e);
+                    }
+                });
+            }
+        }
+
+    }
+
+    private final ConcurrentMap<String, TypeHandlers<?>> handlers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Registers {@code callback} to be run on {@code executor} for every
+     * message of {@code type}.
+     */
+    public <M extends Message> void addHandler(Class<M> type,
+            Consumer<M> callback, Executor executor) {
+        typeHandlers(type).handlers.add(new Handler<>(callback, executor));
+    }
+
+    /**
+     * Unregisters {@code callback}. Callbacks are matched by identity, so this
+     * must be the same instance that was added: a method reference like
+     * {@code this::onFrame} makes a new instance each time it's evaluated, so
+     * keep the one that was registered.
+     * 
+     * @return {@code false} if {@code callback} wasn't registered for
+     *         {@code type}
+     */
+    public <M extends Message> boolean removeHandler(Class<M> type,
+            Consumer<M> callback) {
+        boolean removed = typeHandlers(type).handlers
+                .removeIf(h -> h.callback == callback);
+        if (!removed) {
+            LOGGER.warn("No " + type.getSimpleName() + " handler to remove,"
+                    + " was it registered with a different instance?");
+        }
+        return removed;
+    }
+
+    /**
+     * Dispatches {@code packet} to its handlers.
+     * 
+     * @return {@code false} if there are no handlers for the packet's type
+     */
+    public boolean dispatch(Any packet) throws InvalidProtocolBufferException {
+        TypeHandlers<?> th = handlers.get(Packets.typeName(packet));
+        if (th == null || th.handlers.isEmpty()) {
+            return false;
+        }
+        th.dispatch(packet);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <M extends Message> TypeHandlers<M> typeHandlers(Class<M> type) {
+        return (TypeHandlers<M>) handlers.computeIfAbsent(
+                Packets.typeName(type), k -> new TypeHandlers<>(type));
+    }
+
+}
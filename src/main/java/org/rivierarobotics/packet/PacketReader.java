@@ -0,0 +1,113 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.Consumer;
+
+import org.rivierarobotics.protos.Packet.SimplePacket;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * Incrementally splits length-prefixed packets out of a non-blocking channel.
+ * Each packet body is read into an array sized from its length prefix, which
+ * the parsed packet then aliases instead of copying.
+ */
+public final class PacketReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // body of the packet currently being read straight from the channel
+    private ByteBuffer body;
+
+    /**
+     * Reads everything currently available from {@code channel}, passing each
+     * completed packet to {@code sink}.
+     * 
+     * @return the number of bytes read, or {@code -1} on end of stream
+     */
+    public int read(ReadableByteChannel channel, Consumer<Any> sink)
+            throws IOException {
+        int total = 0;
+        while (true) {
+            int read = channel.read(body != null ? body : buffer);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (body != null) {
+                if (!body.hasRemaining()) {
+                    completeBody(sink);
+                }
+            } else {
+                drainPackets(sink);
+            }
+            if (read == 0) {
+                return total;
+            }
+        }
+    }
+
+    /**
+     * Discards any partially read packet, e.g. after a reconnect.
+     */
+    public void reset() {
+        buffer.clear();
+        body = null;
+    }
+
+    private void drainPackets(Consumer<Any> sink) throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.remaining() >= Integer.BYTES) {
+                int len = Packets.checkLength(buffer.getInt());
+                int available = Math.min(len, buffer.remaining());
+                body = ByteBuffer.wrap(new byte[len]);
+                body.put(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), available);
+                buffer.position(buffer.position() + available);
+                if (body.hasRemaining()) {
+                    // the rest is read directly into the body
+                    return;
+                }
+                completeBody(sink);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private void completeBody(Consumer<Any> sink) throws IOException {
+        byte[] bytes = body.array();
+        body = null;
+        sink.accept(Packets.parsePacket(bytes));
+    }
+
+}
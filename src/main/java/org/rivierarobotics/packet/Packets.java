@@ -29,20 +29,98 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.rivierarobotics.protos.Packet.SimplePacket;
 
-import com.google.common.io.ByteStreams;
 import com.google.protobuf.Any;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Internal;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
 
 public final class Packets {
 
+    /**
+     * Version sent in {@code Hello}. Bump it when a change needs both ends to
+     * know about each other.
+     */
+    public static final int PROTOCOL_VERSION = 3;
+    /**
+     * First version that understands {@code Feedback}.
+     */
+    public static final int FEEDBACK_VERSION = 2;
+    /**
+     * First version that understands {@code FrameCredit}.
+     */
+    public static final int CREDIT_VERSION = 3;
+
+    /**
+     * Upper bound on a single packet, guards against reading garbage lengths
+     * off a desynchronized stream.
+     */
+    public static final int MAX_PACKET_LENGTH = 16 * 1024 * 1024;
+
+    static int checkLength(int len) throws IOException {
+        if (len < 0 || len > MAX_PACKET_LENGTH) {
+            throw new IOException("Invalid packet length " + len);
+        }
+        return len;
+    }
+
+    /**
+     * @return the full protobuf type name of {@code type}
+     */
+    public static String typeName(Class<? extends Message> type) {
+        return Internal.getDefaultInstance(type).getDescriptorForType()
+                .getFullName();
+    }
+
+    /**
+     * @return the full protobuf type name of the message in {@code packet}
+     */
+    public static String typeName(Any packet) {
+        String typeUrl = packet.getTypeUrl();
+        return typeUrl.substring(typeUrl.lastIndexOf('/') + 1);
+    }
+
     public static Any readPacket(InputStream stream) throws IOException {
         DataInputStream in = new DataInputStream(stream);
-        int len = in.readInt();
-        return SimplePacket.parseFrom(ByteStreams.limit(stream, len))
-                .getMessage();
+        int len = checkLength(in.readInt());
+        byte[] body = new byte[len];
+        in.readFully(body);
+        return parsePacket(body);
+    }
+
+    /**
+     * Parses a packet body. The returned message aliases {@code body} rather
+     * than copying it, so the array must not be modified afterwards.
+     */
+    public static Any parsePacket(byte[] body) throws IOException {
+        CodedInputStream in = UnsafeByteOperations.unsafeWrap(body)
+                .newCodedInput();
+        in.enableAliasing(true);
+        return SimplePacket.parseFrom(in).getMessage();
+    }
+
+    /**
+     * Unpacks {@code packet} like {@link Any#unpack(Class)}, but keeps bytes
+     * fields aliased to the packet's buffer instead of copying them again.
+     */
+    public static <M extends Message> M unpack(Any packet, Class<M> type)
+            throws InvalidProtocolBufferException {
+        if (!packet.is(type)) {
+            throw new InvalidProtocolBufferException(
+                    "Type of the Any message does not match the given class.");
+        }
+        CodedInputStream in = packet.getValue().newCodedInput();
+        in.enableAliasing(true);
+        @SuppressWarnings("unchecked")
+        M message = (M) Internal.getDefaultInstance(type).getParserForType()
+                .parseFrom(in);
+        return message;
     }
 
     public static void writePacket(OutputStream stream, Message packet)
@@ -56,6 +134,29 @@ public final class Packets {
         pack.writeTo(stream);
     }
 
+    /**
+     * Encodes a packet, including its length prefix, into a buffer ready for
+     * writing to a channel.
+     */
+    public static ByteBuffer encodePacket(Message packet) {
+        SimplePacket pack =
+                SimplePacket.newBuilder().setMessage(Any.pack(packet)).build();
+
+        int len = pack.getSerializedSize();
+        byte[] bytes = new byte[Integer.BYTES + len];
+        ByteBuffer.wrap(bytes).putInt(len);
+        CodedOutputStream out =
+                CodedOutputStream.newInstance(bytes, Integer.BYTES, len);
+        try {
+            pack.writeTo(out);
+        } catch (IOException e) {
+            // only thrown when out of space, which the size check prevents
+            throw new IllegalStateException(e);
+        }
+        out.checkNoSpaceLeft();
+        return ByteBuffer.wrap(bytes);
+    }
+
     private Packets() {
     }
 
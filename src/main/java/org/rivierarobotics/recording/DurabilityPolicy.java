@@ -0,0 +1,104 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.recording;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How often a {@link RecordingWriter} forces written frames to disk. Frames
+ * are always forced when the recording is closed.
+ */
+public final class DurabilityPolicy {
+
+    /**
+     * Only forces frames to disk when the recording is closed.
+     */
+    public static final DurabilityPolicy ON_CLOSE = new DurabilityPolicy(0, 0);
+
+    /**
+     * Forces frames to disk at least every {@code millis} milliseconds.
+     */
+    public static DurabilityPolicy everyMillis(long millis) {
+        checkArgument(millis > 0, "millis must be positive");
+        return new DurabilityPolicy(millis, 0);
+    }
+
+    /**
+     * Forces frames to disk at least every {@code frames} frames.
+     */
+    public static DurabilityPolicy everyFrames(int frames) {
+        checkArgument(frames > 0, "frames must be positive");
+        return new DurabilityPolicy(0, frames);
+    }
+
+    private final long maxUnsyncedMillis;
+    private final int maxUnsyncedFrames;
+
+    private DurabilityPolicy(long maxUnsyncedMillis, int maxUnsyncedFrames) {
+        this.maxUnsyncedMillis = maxUnsyncedMillis;
+        this.maxUnsyncedFrames = maxUnsyncedFrames;
+    }
+
+    /**
+     * @return this policy, but also forcing at least every {@code frames}
+     *         frames
+     */
+    public DurabilityPolicy orEveryFrames(int frames) {
+        checkArgument(frames > 0, "frames must be positive");
+        return new DurabilityPolicy(maxUnsyncedMillis, frames);
+    }
+
+    /**
+     * @return the longest time frames may stay unforced, or {@code 0} if
+     *         there is no limit
+     */
+    public long getMaxUnsyncedMillis() {
+        return maxUnsyncedMillis;
+    }
+
+    /**
+     * @return the most frames that may stay unforced, or {@code 0} if there
+     *         is no limit
+     */
+    public int getMaxUnsyncedFrames() {
+        return maxUnsyncedFrames;
+    }
+
+    boolean shouldSync(int unsyncedFrames, long unsyncedNanos) {
+        if (unsyncedFrames == 0) {
+            return false;
+        }
+        return (maxUnsyncedFrames > 0 && unsyncedFrames >= maxUnsyncedFrames)
+                || (maxUnsyncedMillis > 0 && unsyncedNanos >= maxUnsyncedMillis
+                        * 1_000_000L);
+    }
+
+    @Override
+    public String toString() {
+        return "DurabilityPolicy[maxUnsyncedMillis=" + maxUnsyncedMillis
+                + ", maxUnsyncedFrames=" + maxUnsyncedFrames + "]";
+    }
+
+}
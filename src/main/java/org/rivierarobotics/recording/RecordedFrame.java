@@ -0,0 +1,75 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.recording;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.rivierarobotics.Source;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A single JPEG frame as stored in a recording.
+ */
+public final class RecordedFrame {
+
+    private final ByteString jpeg;
+    private final long captureTimeMicros;
+    private final long receiveTimeMicros;
+    private final Source source;
+
+    public RecordedFrame(ByteString jpeg, long captureTimeMicros,
+            long receiveTimeMicros, Source source) {
+        this.jpeg = checkNotNull(jpeg, "jpeg");
+        this.captureTimeMicros = captureTimeMicros;
+        this.receiveTimeMicros = receiveTimeMicros;
+        this.source = checkNotNull(source, "source");
+    }
+
+    public ByteString getJpeg() {
+        return jpeg;
+    }
+
+    /**
+     * @return when the server captured the frame, in microseconds since the
+     *         epoch, or {@code 0} if unknown
+     */
+    public long getCaptureTimeMicros() {
+        return captureTimeMicros;
+    }
+
+    /**
+     * @return when the client received the frame, in microseconds since the
+     *         epoch
+     */
+    public long getReceiveTimeMicros() {
+        return receiveTimeMicros;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.recording;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.rivierarobotics.LoggerUtil;
+import org.rivierarobotics.Source;
+import org.slf4j.Logger;
+
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Random access to the frames of a recording. The index is memory-mapped, so
+ * finding frame {@code n} costs one lookup and one read no matter how large
+ * the recording is.
+ */
+public final class RecordingReader implements Closeable {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private final Path path;
+    private final FileChannel recording;
+    private final long startTimeMillis;
+    private final ByteBuffer index;
+    private final int frameCount;
+
+    public RecordingReader(Path path) throws IOException {
+        this.path = path;
+        this.recording = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(Recordings.HEADER_SIZE);
+            readFully(recording, header, 0);
+            header.flip();
+            Recordings.checkMagic(header, Recordings.MAGIC, "recording");
+            this.startTimeMillis = header.getLong();
+
+            ByteBuffer idx = mapIndex();
+            if (idx == null) {
+                LOGGER.info("Rebuilding missing or damaged index for " + path);
+                idx = scanIndex();
+            }
+            this.index = idx;
+            this.frameCount = idx.capacity() / Recordings.INDEX_ENTRY_SIZE;
+        } catch (IOException e) {
+            recording.close();
+            throw e;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return when recording started, in milliseconds since the epoch
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public long getReceiveTimeMicros(int frame) {
+        return index.getLong(entry(frame) + Long.BYTES);
+    }
+
+    /**
+     * Reads only the source of a frame, skipping the JPEG.
+     */
+    public Source getSource(int frame) throws IOException {
+        ByteBuffer source = ByteBuffer.allocate(Byte.BYTES);
+        readFully(recording, source, index.getLong(entry(frame))
+                + Recordings.RECORD_HEADER_SIZE - Byte.BYTES);
+        return Recordings.source(source.get(0));
+    }
+
+    public RecordedFrame getFrame(int frame) throws IOException {
+        long offset = index.getLong(entry(frame));
+        ByteBuffer header = ByteBuffer.allocate(Recordings.RECORD_HEADER_SIZE);
+        readFully(recording, header, offset);
+        header.flip();
+        int length = header.getInt();
+        long captureTime = header.getLong();
+        long receiveTime = header.getLong();
+        byte source = header.get();
+
+        byte[] jpeg = new byte[length];
+        readFully(recording, ByteBuffer.wrap(jpeg),
+                offset + Recordings.RECORD_HEADER_SIZE);
+        return new RecordedFrame(UnsafeByteOperations.unsafeWrap(jpeg),
+                captureTime, receiveTime, Recordings.source(source));
+    }
+
+    @Override
+    public void close() throws IOException {
+        recording.close();
+    }
+
+    private int entry(int frame) {
+        if (frame < 0 || frame >= frameCount) {
+            throw new IndexOutOfBoundsException(
+                    "frame " + frame + " of " + frameCount);
+        }
+        return frame * Recordings.INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * Maps the index entries, trimmed to those whose records are complete.
+     * 
+     * @return the entries, or {@code null} if the index is unusable
+     */
+    private ByteBuffer mapIndex() throws IOException {
+        Path indexPath = Recordings.indexPath(path);
+        if (!Files.exists(indexPath)) {
+            return null;
+        }
+        try (FileChannel channel =
+                FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            ByteBuffer header =
+                    ByteBuffer.allocate(Recordings.INDEX_HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            Recordings.checkMagic(header, Recordings.INDEX_MAGIC, "index");
+
+            long entryBytes = channel.size() - Recordings.INDEX_HEADER_SIZE;
+            long entries = entryBytes / Recordings.INDEX_ENTRY_SIZE;
+            if (entries * Recordings.INDEX_ENTRY_SIZE > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                    Recordings.INDEX_HEADER_SIZE,
+                    entries * Recordings.INDEX_ENTRY_SIZE);
+            // drop trailing entries whose records didn't make it to disk
+            long size = recording.size();
+            while (entries > 0 && recordEnd(mapped.getLong((int) (entries - 1)
+                    * Recordings.INDEX_ENTRY_SIZE)) > size) {
+                entries--;
+            }
+            mapped.limit((int) entries * Recordings.INDEX_ENTRY_SIZE);
+            return mapped.slice();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read index for " + path, e);
+            return null;
+        }
+    }
+
+    private long recordEnd(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        if (offset + Recordings.RECORD_HEADER_SIZE > recording.size()) {
+            return Long.MAX_VALUE;
+        }
+        readFully(recording, length, offset);
+        length.flip();
+        return offset + Recordings.RECORD_HEADER_SIZE + length.getInt();
+    }
+
+    /**
+     * Builds the index in memory by walking the records.
+     */
+    private ByteBuffer scanIndex() throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(1024);
+        ByteBuffer header = ByteBuffer.allocate(Recordings.RECORD_HEADER_SIZE);
+        long size = recording.size();
+        long offset = Recordings.HEADER_SIZE;
+        while (offset + Recordings.RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(recording, header, offset);
+            header.flip();
+            int length = header.getInt();
+            long end = offset + Recordings.RECORD_HEADER_SIZE + length;
+            if (length < 0 || end > size) {
+                // truncated or damaged final record
+                break;
+            }
+            header.getLong();
+            long receiveTime = header.getLong();
+            if (entries.remaining() < Recordings.INDEX_ENTRY_SIZE) {
+                ByteBuffer bigger = ByteBuffer.allocate(entries.capacity() * 2);
+                entries.flip();
+                entries = bigger.put(entries);
+            }
+            entries.putLong(offset).putLong(receiveTime);
+            offset = end;
+        }
+        entries.flip();
+        return entries.slice();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+            long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Appends frames to a new recording and its index. Each batch of frames goes
+ * to disk as one gathering write per file.
+ */
+public final class RecordingWriter implements Closeable {
+
+    private final Path path;
+    private final FileChannel recording;
+    private final FileChannel index;
+    private final DurabilityPolicy durability;
+    private ByteBuffer recordHeaders =
+            ByteBuffer.allocate(32 * Recordings.RECORD_HEADER_SIZE);
+    private ByteBuffer indexEntries =
+            ByteBuffer.allocate(32 * Recordings.INDEX_ENTRY_SIZE);
+    private long position;
+    private int frameCount;
+    private int unsyncedFrames;
+    private long lastSyncNanos = System.nanoTime();
+
+    public RecordingWriter(Path path) throws IOException {
+        this(path, DurabilityPolicy.ON_CLOSE);
+    }
+
+    public RecordingWriter(Path path, DurabilityPolicy durability)
+            throws IOException {
+        this.path = path;
+        this.durability = durability;
+        this.recording = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        try {
+            this.index = FileChannel.open(Recordings.indexPath(path),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            recording.close();
+            throw e;
+        }
+        writeFully(recording, Recordings.header(System.currentTimeMillis()));
+        writeFully(index, Recordings.indexHeader());
+        position = Recordings.HEADER_SIZE;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public void write(RecordedFrame frame) throws IOException {
+        write(Collections.singletonList(frame));
+    }
+
+    /**
+     * Writes all of {@code frames} with a single gathering write to the
+     * recording and another to the index, then forces them to disk if the
+     * durability policy calls for it.
+     */
+    public void write(List<RecordedFrame> frames) throws IOException {
+        if (frames.isEmpty()) {
+            return;
+        }
+        recordHeaders = ensureCapacity(recordHeaders,
+                frames.size() * Recordings.RECORD_HEADER_SIZE);
+        indexEntries = ensureCapacity(indexEntries,
+                frames.size() * Recordings.INDEX_ENTRY_SIZE);
+        recordHeaders.clear();
+        indexEntries.clear();
+
+        ByteBuffer[] buffers = new ByteBuffer[frames.size() * 2];
+        long offset = position;
+        for (int i = 0; i < frames.size(); i++) {
+            RecordedFrame frame = frames.get(i);
+            int start = recordHeaders.position();
+            Recordings.putRecordHeader(recordHeaders, frame);
+            ByteBuffer header = recordHeaders.duplicate();
+            header.position(start);
+            header.limit(recordHeaders.position());
+            buffers[i * 2] = header;
+            buffers[i * 2 + 1] = frame.getJpeg().asReadOnlyByteBuffer();
+
+            Recordings.putIndexEntry(indexEntries, offset, frame);
+            offset += Recordings.RECORD_HEADER_SIZE + frame.getJpeg().size();
+        }
+        writeFully(recording, buffers);
+        indexEntries.flip();
+        writeFully(index, indexEntries);
+
+        position = offset;
+        frameCount += frames.size();
+        unsyncedFrames += frames.size();
+        syncIfDue();
+    }
+
+    /**
+     * Forces written frames to disk if the durability policy says they have
+     * waited long enough. Worth calling periodically even without new frames.
+     */
+    public void syncIfDue() throws IOException {
+        if (durability.shouldSync(unsyncedFrames,
+                System.nanoTime() - lastSyncNanos)) {
+            sync();
+        }
+    }
+
+    public void sync() throws IOException {
+        // recording first, so a synced index entry always has its record
+        recording.force(false);
+        index.force(false);
+        unsyncedFrames = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            try {
+                index.close();
+            } finally {
+                recording.close();
+            }
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+        if (buffer.capacity() >= size) {
+            return buffer;
+        }
+        return ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers)
+            throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.rivierarobotics.Source;
+
+/**
+ * Layout of the recording container. All numbers are big-endian.
+ * 
+ * <pre>
+ * recording (.vcr):
+ *   header:  magic "VC17REC\0", int version, long start time (epoch millis)
+ *   records: int jpeg length, long capture time (epoch micros, 0 if unknown),
+ *            long receive time (epoch micros), byte source ordinal, jpeg bytes
+ *
+ * index (.vcr.idx), one fixed-size entry per record for O(1) seeking:
+ *   header:  magic "VC17IDX\0", int version, int reserved
+ *   entries: long record offset, long receive time (epoch micros)
+ * </pre>
+ * 
+ * Index entries are only written after their record, so an index left behind
+ * by a crash never points past the end of the recording.
+ */
+public final class Recordings {
+
+    public static final String EXTENSION = ".vcr";
+    public static final String INDEX_EXTENSION = ".idx";
+
+    static final int VERSION = 1;
+
+    static final byte[] MAGIC = "VC17REC\0".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_SIZE = MAGIC.length + Integer.BYTES + Long.BYTES;
+    static final int RECORD_HEADER_SIZE =
+            Integer.BYTES + Long.BYTES + Long.BYTES + Byte.BYTES;
+
+    static final byte[] INDEX_MAGIC =
+            "VC17IDX\0".getBytes(StandardCharsets.US_ASCII);
+    static final int INDEX_HEADER_SIZE =
+            INDEX_MAGIC.length + Integer.BYTES + Integer.BYTES;
+    static final int INDEX_ENTRY_SIZE = Long.BYTES + Long.BYTES;
+
+    public static Path indexPath(Path recording) {
+        return recording
+                .resolveSibling(recording.getFileName() + INDEX_EXTENSION);
+    }
+
+    static ByteBuffer header(long startTimeMillis) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.put(MAGIC).putInt(VERSION).putLong(startTimeMillis);
+        buf.flip();
+        return buf;
+    }
+
+    static ByteBuffer indexHeader() {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        buf.put(INDEX_MAGIC).putInt(VERSION).putInt(0);
+        buf.flip();
+        return buf;
+    }
+
+    static void putRecordHeader(ByteBuffer buf, RecordedFrame frame) {
+        buf.putInt(frame.getJpeg().size())
+                .putLong(frame.getCaptureTimeMicros())
+                .putLong(frame.getReceiveTimeMicros())
+                .put((byte) frame.getSource().ordinal());
+    }
+
+    static void putIndexEntry(ByteBuffer buf, long offset,
+            RecordedFrame frame) {
+        buf.putLong(offset).putLong(frame.getReceiveTimeMicros());
+    }
+
+    static Source source(byte ordinal) throws IOException {
+        Source[] values = Source.values();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Unknown source " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    static void checkMagic(ByteBuffer buf, byte[] magic, String what)
+            throws IOException {
+        if (buf.remaining() < magic.length + Integer.BYTES) {
+            throw new IOException("Truncated " + what);
+        }
+        for (byte b : magic) {
+            if (buf.get() != b) {
+                throw new IOException("Not a " + what);
+            }
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException(
+                    "Unsupported " + what + " version " + version);
+        }
+    }
+
+    private Recordings() {
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.recording;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Temporary first-in, first-out overflow for frames that don't fit in
+ * memory. Frames are stored in the same record layout as a recording, and the
+ * file is deleted when closed.
+ */
+public final class SpillFile implements Closeable {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer appendHeader =
+            ByteBuffer.allocate(Recordings.RECORD_HEADER_SIZE);
+    private final ByteBuffer pollHeader =
+            ByteBuffer.allocate(Recordings.RECORD_HEADER_SIZE);
+    private long readPosition;
+    private long writePosition;
+    private int frameCount;
+    private long byteCount;
+
+    public SpillFile() throws IOException {
+        this.path = Files.createTempFile("vc2017-spill", ".tmp");
+        this.channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public synchronized boolean isEmpty() {
+        return frameCount == 0;
+    }
+
+    /**
+     * @return how many frames are waiting in the file
+     */
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return how many JPEG bytes are waiting in the file
+     */
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    public synchronized void append(RecordedFrame frame) throws IOException {
+        appendHeader.clear();
+        Recordings.putRecordHeader(appendHeader, frame);
+        appendHeader.flip();
+        ByteBuffer jpeg = frame.getJpeg().asReadOnlyByteBuffer();
+        long position = writePosition;
+        while (appendHeader.hasRemaining()) {
+            position += channel.write(appendHeader, position);
+        }
+        while (jpeg.hasRemaining()) {
+            position += channel.write(jpeg, position);
+        }
+        writePosition = position;
+        frameCount++;
+        byteCount += frame.getJpeg().size();
+    }
+
+    /**
+     * @return the oldest spilled frame, or {@code null} if empty
+     */
+    public synchronized RecordedFrame poll() throws IOException {
+        if (frameCount == 0) {
+            return null;
+        }
+        pollHeader.clear();
+        readFully(pollHeader, readPosition);
+        pollHeader.flip();
+        int length = pollHeader.getInt();
+        long captureTime = pollHeader.getLong();
+        long receiveTime = pollHeader.getLong();
+        byte source = pollHeader.get();
+        byte[] jpeg = new byte[length];
+        readFully(ByteBuffer.wrap(jpeg),
+                readPosition + Recordings.RECORD_HEADER_SIZE);
+
+        readPosition += Recordings.RECORD_HEADER_SIZE + length;
+        frameCount--;
+        byteCount -= length;
+        if (frameCount == 0) {
+            // drained, start over so the file doesn't grow forever
+            readPosition = 0;
+            writePosition = 0;
+            channel.truncate(0);
+        }
+        return new RecordedFrame(UnsafeByteOperations.unsafeWrap(jpeg),
+                captureTime, receiveTime, Recordings.source(source));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+}
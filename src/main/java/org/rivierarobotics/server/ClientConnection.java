@@ -0,0 +1,343 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.rivierarobotics.LoggerUtil;
+import org.rivierarobotics.Source;
+import org.rivierarobotics.ThreadLoop;
+import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Feedback;
+import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.protos.Packet.FrameCredit;
+import org.rivierarobotics.protos.Packet.Hello;
+import org.rivierarobotics.protos.Packet.SetFrameType;
+import org.rivierarobotics.protos.Packet.Signal;
+import org.slf4j.Logger;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+/**
+ * Server side of one client connection for the stand-in servers. Handles the
+ * messages a client sends, sending is left to the owner.
+ */
+final class ClientConnection implements Closeable {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private final Socket socket;
+    private final String name;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Hello serverHello;
+    private final ThreadLoop readLoop;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private volatile Source source = Source.PLAIN;
+    // clients that never say hello only know plain JPEG
+    private volatile Frame.Encoding encoding = Frame.Encoding.JPEG;
+    private volatile int feed;
+    private volatile Feedback feedback = Feedback.getDefaultInstance();
+    private final AtomicInteger credits = new AtomicInteger();
+    // push only until the client grants credit
+    private volatile boolean creditMode;
+    private volatile Runnable creditListener = () -> {
+    };
+    // guarded by this
+    private boolean helloSent;
+    private int pushedSinceHello;
+    // only touched by the sender
+    private double frameCredit = 1;
+    private long lastCreditNanos = System.nanoTime();
+    private volatile boolean closed;
+
+    /**
+     * @param serverHello
+     *            sent back when the client says hello, its encodings are the
+     *            ones this server is willing to send
+     */
+    ClientConnection(Socket socket, Hello serverHello) throws IOException {
+        this.socket = socket;
+        this.serverHello = serverHello;
+        this.name = socket.getRemoteSocketAddress().toString();
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream(),
+                64 * 1024);
+        socket.setTcpNoDelay(true);
+        this.readLoop =
+                new ThreadLoop("Client " + name, this::readMessage, 0);
+        readLoop.start();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the source last requested by the client
+     */
+    Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return how many times the client asked to switch feeds
+     */
+    int getFeed() {
+        return feed;
+    }
+
+    /**
+     * @return the frame encoding to send this client, the first one the
+     *         server offers that the client listed
+     */
+    Frame.Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the client's last report, all 0 until it sends one
+     */
+    Feedback getFeedback() {
+        return feedback;
+    }
+
+    /**
+     * @return the JPEG quality the client asked for, 0 for the server's own
+     */
+    int getQuality() {
+        return feedback.getQuality();
+    }
+
+    /**
+     * Decides whether a frame ready now should be sent or skipped, to keep
+     * under the frame rate the client asked for. Call it from one sender
+     * thread only, once per frame.
+     */
+    boolean allowFrame() {
+        long now = System.nanoTime();
+        double maxFps = feedback.getMaxFps();
+        // one frame's worth may be saved up besides the one being sent, so
+        // the rate isn't rounded down to a fraction of the source's, but
+        // bursts stay short
+        frameCredit = maxFps <= 0 ? 1
+                : Math.min(2,
+                        frameCredit + (now - lastCreditNanos) / 1e9 * maxFps);
+        lastCreditNanos = now;
+        if (frameCredit < 1) {
+            return false;
+        }
+        frameCredit -= 1;
+        return true;
+    }
+
+    /**
+     * @return whether the client's window lets a frame go out now, always
+     *         {@code true} for clients that don't grant credit
+     */
+    boolean hasCredit() {
+        return !creditMode || credits.get() > 0;
+    }
+
+    /**
+     * @return frames the client will still take, -1 if it doesn't grant
+     *         credit
+     */
+    int getCredits() {
+        return creditMode ? credits.get() : -1;
+    }
+
+    /**
+     * Sets what to run, on the read thread, whenever the client grants
+     * credit.
+     */
+    void setCreditListener(Runnable creditListener) {
+        this.creditListener = creditListener;
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    synchronized void send(Message message) throws IOException {
+        Packets.writePacket(out, message);
+        out.flush();
+    }
+
+    /**
+     * Sends {@code frame} in the encoding negotiated with this client, using
+     * up a credit if the client grants them. Check {@link #hasCredit()} first.
+     * 
+     * @param frame
+     *            - a plain JPEG frame
+     * @return the size of the image data sent
+     */
+    synchronized int sendFrame(Frame frame) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to " + name + " is closed");
+        }
+        Frame.Encoding encoding = this.encoding;
+        if (encoding == Frame.Encoding.DEFLATE_JPEG) {
+            frame = frame.toBuilder().setJpeg(deflate(frame.getJpeg()))
+                    .setEncoding(encoding).build();
+        }
+        if (creditMode) {
+            credits.decrementAndGet();
+        } else if (helloSent) {
+            // the client will grant these back too
+            pushedSinceHello++;
+        }
+        send(frame);
+        return frame.getJpeg().size();
+    }
+
+    private ByteString deflate(ByteString data) throws IOException {
+        ByteString.Output out = ByteString.newOutput(data.size());
+        try (OutputStream deflating = new DeflaterOutputStream(out, deflater)) {
+            data.writeTo(deflating);
+        } finally {
+            deflater.reset();
+        }
+        return out.toByteString();
+    }
+
+    private void readMessage() {
+        Any packet;
+        try {
+            packet = Packets.readPacket(in);
+        } catch (IOException e) {
+            if (!closed) {
+                LOGGER.info("Lost client " + name + ": " + e);
+            }
+            close();
+            return;
+        }
+        try {
+            handle(packet);
+        } catch (IOException e) {
+            LOGGER.warn("Bad message from " + name, e);
+        }
+    }
+
+    private void handle(Any packet) throws IOException {
+        if (packet.is(Hello.class)) {
+            Hello msg = Packets.unpack(packet, Hello.class);
+            encoding = chooseEncoding(msg.getEncodingsList());
+            LOGGER.info(name + " speaks protocol " + msg.getProtocolVersion()
+                    + ", sending " + encoding);
+            synchronized (this) {
+                send(serverHello);
+                helloSent = true;
+            }
+        } else if (packet.is(SetFrameType.class)) {
+            SetFrameType msg = Packets.unpack(packet, SetFrameType.class);
+            if (msg.getType() == SetFrameType.Type.UNRECOGNIZED) {
+                LOGGER.info(name + " requested unknown frame type " + msg);
+                return;
+            }
+            source = Source.valueOf(msg.getType().name());
+            LOGGER.info(name + " requested " + source + " frames");
+        } else if (packet.is(Feedback.class)) {
+            Feedback msg = Packets.unpack(packet, Feedback.class);
+            Feedback last = feedback;
+            feedback = msg;
+            if (msg.getMaxFps() != last.getMaxFps()
+                    || msg.getQuality() != last.getQuality()) {
+                LOGGER.info(String.format(
+                        "%s asked for max %.1f fps at quality %d"
+                                + " (receiving %.1f fps, showing %.1f fps,"
+                                + " %d queued)",
+                        name, msg.getMaxFps(), msg.getQuality(),
+                        msg.getReceivedFps(), msg.getDisplayedFps(),
+                        msg.getQueueDepth()));
+            }
+        } else if (packet.is(FrameCredit.class)) {
+            FrameCredit msg = Packets.unpack(packet, FrameCredit.class);
+            synchronized (this) {
+                if (!creditMode) {
+                    LOGGER.info(name + " granted " + msg.getCredits()
+                            + " frames, sending on credit from now on");
+                    // already in flight, so already using up the window
+                    credits.addAndGet(-pushedSinceHello);
+                    creditMode = true;
+                }
+                credits.addAndGet(msg.getCredits());
+            }
+            creditListener.run();
+        } else if (packet.is(Signal.class)) {
+            Signal msg = Packets.unpack(packet, Signal.class);
+            switch (msg.getType()) {
+                case SWITCH_FEED:
+                    feed++;
+                    LOGGER.info(name + " switched feed");
+                    break;
+                case DISCONNECT:
+                    LOGGER.info(name + " asked to disconnect");
+                    close();
+                    break;
+                default:
+                    LOGGER.info(name + " sent unknown signal " + msg);
+            }
+        } else {
+            LOGGER.debug(name + " sent unhandled " + packet.getTypeUrl());
+        }
+    }
+
+    private Frame.Encoding chooseEncoding(List<Frame.Encoding> accepted) {
+        for (Frame.Encoding candidate : serverHello.getEncodingsList()) {
+            if (accepted.contains(candidate)) {
+                return candidate;
+            }
+        }
+        return Frame.Encoding.JPEG;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        readLoop.stop();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing " + name, e);
+        }
+        // after the socket, which unblocks any sender holding the lock
+        synchronized (this) {
+            deflater.end();
+        }
+    }
+
+}
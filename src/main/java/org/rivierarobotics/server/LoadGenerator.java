@@ -0,0 +1,470 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.server;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.rivierarobotics.LoggerUtil;
+import org.rivierarobotics.Mailbox;
+import org.rivierarobotics.ThreadLoop;
+import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Feedback;
+import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.protos.Packet.Hello;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+
+/**
+ * Stand-in for the vision server that generates synthetic frames at a fixed
+ * resolution, quality and rate, optionally in bursts, and sends them to every
+ * client that connects. Each client gets its own sender that only ever holds
+ * the newest frame, so a client that can't keep up falls behind instead of
+ * slowing the others. Clients that grant credit only get frames while they have
+ * some, so frames wait here rather than in the network. Clients' rate limits
+ * are applied per client, and requested qualities are rendered in the
+ * background, to the nearest {@value #QUALITY_BUCKET}, the first time they are
+ * asked for. Prints per-client delivery every second.
+ */
+public final class LoadGenerator {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final int DEFAULT_PORT = 5800;
+    private static final int QUALITY_BUCKET = 10;
+
+    private static void usage() {
+        System.err.println("usage: LoadGenerator [--port N] [--bind ADDRESS]"
+                + " [--size WxH] [--quality Q] [--fps N] [--burst N]"
+                + " [--frames N] [--duration SECONDS] [--deflate]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        String bind = "localhost";
+        int width = 640;
+        int height = 480;
+        float quality = 0.75f;
+        double fps = 30;
+        int burst = 1;
+        int frames = 30;
+        long durationSeconds = 0;
+        boolean deflate = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--bind":
+                        bind = args[++i];
+                        break;
+                    case "--size":
+                        String[] size = args[++i].split("x", 2);
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                        break;
+                    case "--quality":
+                        quality = Float.parseFloat(args[++i]);
+                        break;
+                    case "--fps":
+                        fps = Double.parseDouble(args[++i]);
+                        break;
+                    case "--burst":
+                        burst = Integer.parseInt(args[++i]);
+                        break;
+                    case "--frames":
+                        frames = Integer.parseInt(args[++i]);
+                        break;
+                    case "--duration":
+                        durationSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--deflate":
+                        deflate = true;
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            usage();
+        }
+        if (width <= 0 || height <= 0 || !(fps > 0) || burst <= 0
+                || frames <= 0 || quality < 0 || quality > 1) {
+            usage();
+        }
+
+        Hello.Builder hello = Hello.newBuilder()
+                .setProtocolVersion(Packets.PROTOCOL_VERSION);
+        if (deflate) {
+            hello.addEncodings(Frame.Encoding.DEFLATE_JPEG);
+        }
+        hello.addEncodings(Frame.Encoding.JPEG);
+
+        LoadGenerator generator = new LoadGenerator(
+                renderFrames(width, height, quality, frames), width, height,
+                quality, fps, burst);
+        ServerSocket socket =
+                new ServerSocket(port, 50, InetAddress.getByName(bind));
+        System.out.println(String.format(
+                "Generating %dx%d frames (%.1f KB avg) at %.1f fps"
+                        + ", bursts of %d, on %s",
+                width, height, generator.averageFrameSize / 1024.0, fps,
+                burst, socket.getLocalSocketAddress()));
+        generator.start();
+        if (durationSeconds > 0) {
+            long end = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(durationSeconds);
+            Thread stopper = new Thread(() -> {
+                for (long wait = end - System.nanoTime(); wait > 0;
+                        wait = end - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                generator.stop();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Error closing server socket", e);
+                }
+            }, "LoadGenerator stopper");
+            stopper.setDaemon(true);
+            stopper.start();
+        }
+        try {
+            while (true) {
+                Socket client = socket.accept();
+                generator.addClient(
+                        new ClientConnection(client, hello.build()));
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Renders {@code count} distinct frames, a noisy gradient with a moving
+     * bar and the frame number, so every frame compresses differently.
+     */
+    private static ByteString[] renderFrames(int width, int height,
+            float quality, int count) throws IOException {
+        ImageWriter writer =
+                ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        BufferedImage image =
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(5818);
+        ByteString[] rendered = new ByteString[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int noise = random.nextInt(32);
+                        int r = (x * 255 / width + noise) & 0xFF;
+                        int g = (y * 255 / height + noise) & 0xFF;
+                        int b = (i * 255 / count) & 0xFF;
+                        image.setRGB(x, y, (r << 16) | (g << 8) | b);
+                    }
+                }
+                Graphics2D g = image.createGraphics();
+                g.setColor(Color.WHITE);
+                g.fillRect(i * width / count, 0, Math.max(1, width / 20),
+                        height);
+                g.setFont(new Font(Font.MONOSPACED, Font.BOLD, height / 8));
+                g.drawString(String.valueOf(i), width / 20, height / 5);
+                g.dispose();
+
+                ByteString.Output out = ByteString.newOutput();
+                try (ImageOutputStream stream =
+                        ImageIO.createImageOutputStream(out)) {
+                    writer.setOutput(stream);
+                    writer.write(null, new IIOImage(image, null, null), param);
+                }
+                rendered[i] = out.toByteString();
+            }
+        } finally {
+            writer.dispose();
+        }
+        return rendered;
+    }
+
+    /**
+     * One connected client and the frames it has taken.
+     */
+    private final class Subscriber {
+
+        private final ClientConnection client;
+        private final Mailbox<Frame> nextFrame = Mailbox.latest();
+        private final ThreadLoop sendLoop;
+        private final LongAdder sentFrames = new LongAdder();
+        private final LongAdder sentBytes = new LongAdder();
+        private final LongAdder throttledFrames = new LongAdder();
+        private final long connectedNanos = System.nanoTime();
+        // only touched by the report loop
+        private long reportedFrames;
+        private long reportedBytes;
+        private long reportedBehind;
+        private long reportedThrottled;
+
+        Subscriber(ClientConnection client) {
+            this.client = client;
+            this.sendLoop = new ThreadLoop("Sender " + client.getName(),
+                    this::sendFrames, 0, ThreadLoop.Mode.ON_WAKE);
+            client.setCreditListener(sendLoop::wake);
+        }
+
+        void offer(Frame frame) {
+            nextFrame.offer(frame);
+            sendLoop.wake();
+        }
+
+        /**
+         * @return frames replaced by a newer one before they could be sent
+         */
+        long getBehindCount() {
+            return nextFrame.getDroppedCount();
+        }
+
+        private void sendFrames() {
+            Frame frame;
+            // without credit the newest frame waits in the mailbox
+            while (client.isOpen() && client.hasCredit()
+                    && (frame = nextFrame.poll()) != null) {
+                if (!client.allowFrame()) {
+                    throttledFrames.increment();
+                    continue;
+                }
+                int quality = client.getQuality();
+                if (quality != 0) {
+                    frame = frame.toBuilder()
+                            .setJpeg(framesAtQuality(quality)[(int) (frame
+                                    .getSequence() % frames.length)])
+                            .build();
+                }
+                try {
+                    sentBytes.add(client.sendFrame(frame));
+                    sentFrames.increment();
+                } catch (IOException e) {
+                    LOGGER.info("Stopped sending to " + client.getName()
+                            + ": " + e);
+                    client.close();
+                }
+            }
+        }
+
+    }
+
+    private final ByteString[] frames;
+    private final int width;
+    private final int height;
+    private final int quality;
+    private final ConcurrentMap<Integer,
+            CompletableFuture<ByteString[]>> framesByQuality =
+                    new ConcurrentHashMap<>();
+    private final ExecutorService renderer =
+            Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("LoadGenerator renderer").setDaemon(true)
+                    .build());
+    private final long burstPeriodNanos;
+    private final int burst;
+    private final double averageFrameSize;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ThreadLoop reportLoop =
+            new ThreadLoop("LoadGenerator report", this::report, 1000);
+    private volatile boolean running = true;
+
+    /**
+     * @param quality
+     *            - the quality {@code frames} were rendered at
+     */
+    public LoadGenerator(ByteString[] frames, int width, int height,
+            float quality, double fps, int burst) {
+        this.frames = frames.clone();
+        this.width = width;
+        this.height = height;
+        this.quality = Math.round(quality * 100);
+        this.burst = burst;
+        this.burstPeriodNanos = (long) (TimeUnit.SECONDS.toNanos(1) * burst
+                / fps);
+        long total = 0;
+        for (ByteString frame : frames) {
+            total += frame.size();
+        }
+        this.averageFrameSize = (double) total / frames.length;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::generate, "LoadGenerator");
+        thread.setDaemon(true);
+        thread.start();
+        reportLoop.start();
+    }
+
+    /**
+     * Stops generating, prints each client's totals and disconnects them.
+     */
+    public void stop() {
+        running = false;
+        reportLoop.stop();
+        for (Subscriber subscriber : subscribers) {
+            printTotals(subscriber);
+            subscriber.client.close();
+            subscriber.sendLoop.stop();
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * @return the frames re-rendered at about {@code quality}, or the
+     *         originals until that's done
+     */
+    private ByteString[] framesAtQuality(int quality) {
+        int bucket = Math.max(QUALITY_BUCKET,
+                Math.round((float) quality / QUALITY_BUCKET) * QUALITY_BUCKET);
+        if (bucket == this.quality) {
+            return frames;
+        }
+        CompletableFuture<ByteString[]> rendered =
+                framesByQuality.computeIfAbsent(bucket,
+                        q -> CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return renderFrames(width, height, q / 100f,
+                                        frames.length);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }, renderer));
+        return rendered.isCompletedExceptionally() ? frames
+                : rendered.getNow(frames);
+    }
+
+    private void addClient(ClientConnection client) {
+        Subscriber subscriber = new Subscriber(client);
+        subscriber.sendLoop.start();
+        subscribers.add(subscriber);
+        System.out.println("Client connected: " + client.getName());
+    }
+
+    private void generate() {
+        long sequence = 0;
+        long nextBurst = System.nanoTime();
+        while (running) {
+            for (long wait = nextBurst - System.nanoTime(); wait > 0;
+                    wait = nextBurst - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            for (int i = 0; i < burst; i++) {
+                sequence++;
+                Frame frame = Frame.newBuilder()
+                        .setJpeg(frames[(int) (sequence % frames.length)])
+                        .setSequence(sequence)
+                        .setCaptureTimeMicros(TimeUnit.MILLISECONDS
+                                .toMicros(System.currentTimeMillis()))
+                        .setWidth(width).setHeight(height).build();
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.offer(frame);
+                }
+            }
+            nextBurst += burstPeriodNanos;
+        }
+    }
+
+    private void report() {
+        for (Subscriber subscriber : subscribers) {
+            long frames = subscriber.sentFrames.sum();
+            long bytes = subscriber.sentBytes.sum();
+            long behind = subscriber.getBehindCount();
+            long throttled = subscriber.throttledFrames.sum();
+            Feedback feedback = subscriber.client.getFeedback();
+            System.out.println(String.format(
+                    "%s: %d fps, %d behind, %d throttled, %.2f MB/s (%s)"
+                            + ", client shows %.1f fps, asks for %s",
+                    subscriber.client.getName(),
+                    frames - subscriber.reportedFrames,
+                    behind - subscriber.reportedBehind,
+                    throttled - subscriber.reportedThrottled,
+                    (bytes - subscriber.reportedBytes) / 1e6,
+                    subscriber.client.getEncoding(),
+                    feedback.getDisplayedFps(),
+                    feedback.getMaxFps() == 0 && feedback.getQuality() == 0
+                            ? "everything"
+                            : String.format("%.1f fps at quality %d",
+                                    feedback.getMaxFps(),
+                                    feedback.getQuality())));
+            subscriber.reportedFrames = frames;
+            subscriber.reportedBytes = bytes;
+            subscriber.reportedBehind = behind;
+            subscriber.reportedThrottled = throttled;
+            if (!subscriber.client.isOpen()) {
+                printTotals(subscriber);
+                subscriber.sendLoop.stop();
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    private void printTotals(Subscriber subscriber) {
+        long frames = subscriber.sentFrames.sum();
+        long behind = subscriber.getBehindCount();
+        double seconds =
+                (System.nanoTime() - subscriber.connectedNanos) / 1e9;
+        System.out.println(String.format(
+                "%s total: %d sent, %d behind (%.1f%%) in %.0fs, %.1f fps",
+                subscriber.client.getName(), frames, behind,
+                100.0 * behind / Math.max(1, frames + behind), seconds,
+                frames / seconds));
+    }
+
+}
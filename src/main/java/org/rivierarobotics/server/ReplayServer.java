@@ -0,0 +1,289 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.rivierarobotics.LoggerUtil;
+import org.rivierarobotics.Source;
+import org.rivierarobotics.packet.Packets;
+import org.rivierarobotics.protos.Packet.Frame;
+import org.rivierarobotics.protos.Packet.Hello;
+import org.rivierarobotics.recording.RecordedFrame;
+import org.rivierarobotics.recording.RecordingReader;
+import org.slf4j.Logger;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Stand-in for the vision server that plays a recording back to every client
+ * that connects, at the original timing, scaled, or as fast as the client can
+ * take it. Timed playback skips frames a client has no credit for, like a
+ * live camera would, while untimed playback waits for credit.
+ */
+public final class ReplayServer {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final int DEFAULT_PORT = 5800;
+    /**
+     * Longest untimed playback waits for credit before checking the
+     * connection is still open.
+     */
+    private static final long CREDIT_CHECK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static void usage() {
+        System.err.println("usage: ReplayServer <recording.vcr> [--port N]"
+                + " [--speed X | --max] [--loop] [--bind ADDRESS]"
+                + " [--deflate]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            usage();
+        }
+        Path recording = Paths.get(args[0]);
+        int port = DEFAULT_PORT;
+        double speed = 1;
+        boolean loop = false;
+        String bind = "localhost";
+        boolean deflate = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--max":
+                    speed = Double.POSITIVE_INFINITY;
+                    break;
+                case "--loop":
+                    loop = true;
+                    break;
+                case "--bind":
+                    bind = args[++i];
+                    break;
+                case "--deflate":
+                    deflate = true;
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (!(speed > 0)) {
+            usage();
+        }
+
+        RecordingReader reader = new RecordingReader(recording);
+        Hello.Builder hello = Hello.newBuilder()
+                .setProtocolVersion(Packets.PROTOCOL_VERSION);
+        if (deflate) {
+            hello.addEncodings(Frame.Encoding.DEFLATE_JPEG);
+        }
+        hello.addEncodings(Frame.Encoding.JPEG);
+        ReplayServer server = new ReplayServer(reader, speed, loop);
+        try (ServerSocket socket =
+                new ServerSocket(port, 50, InetAddress.getByName(bind))) {
+            System.out.println("Replaying " + recording + " ("
+                    + reader.getFrameCount() + " frames) on "
+                    + socket.getLocalSocketAddress());
+            while (true) {
+                Socket client = socket.accept();
+                server.startPlayback(
+                        new ClientConnection(client, hello.build()));
+            }
+        }
+    }
+
+    private final RecordingReader reader;
+    private final double speed;
+    private final boolean loop;
+    private final Set<Source> sources = EnumSet.noneOf(Source.class);
+    /**
+     * Width in the high half and height in the low half, read from each
+     * frame's JPEG header the first time it's played. 0 if not read yet.
+     */
+    private final AtomicLongArray frameSizes;
+
+    public ReplayServer(RecordingReader reader, double speed, boolean loop)
+            throws IOException {
+        this.reader = reader;
+        this.speed = speed;
+        this.loop = loop;
+        this.frameSizes = new AtomicLongArray(reader.getFrameCount());
+        for (int i = 0; i < reader.getFrameCount(); i++) {
+            sources.add(reader.getSource(i));
+        }
+    }
+
+    private void startPlayback(ClientConnection client) {
+        Thread thread = new Thread(() -> {
+            Thread playback = Thread.currentThread();
+            client.setCreditListener(() -> LockSupport.unpark(playback));
+            try {
+                long sequence = 0;
+                do {
+                    sequence = playback(client, sequence);
+                } while (loop && client.isOpen());
+            } catch (IOException e) {
+                LOGGER.info("Stopped playback to " + client.getName() + ": "
+                        + e);
+            } finally {
+                client.close();
+            }
+        }, "Playback " + client.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Plays the recording once, numbering frames on from {@code sequence}.
+     * 
+     * @return the last sequence number sent
+     */
+    private long playback(ClientConnection client, long sequence)
+            throws IOException {
+        int count = reader.getFrameCount();
+        if (count == 0) {
+            return sequence;
+        }
+        long firstFrameMicros = reader.getReceiveTimeMicros(0);
+        long startNanos = System.nanoTime();
+        long sent = 0;
+        long bytes = 0;
+        for (int i = 0; i < count && client.isOpen(); i++) {
+            RecordedFrame frame = reader.getFrame(i);
+            // only filter when the recording has the wanted source at all
+            Source wanted = client.getSource();
+            if (frame.getSource() != wanted && sources.contains(wanted)) {
+                continue;
+            }
+            if (Double.isInfinite(speed)) {
+                while (client.isOpen() && !client.hasCredit()) {
+                    LockSupport.parkNanos(CREDIT_CHECK_NANOS);
+                }
+            } else {
+                long offsetNanos = TimeUnit.MICROSECONDS.toNanos(
+                        frame.getReceiveTimeMicros() - firstFrameMicros);
+                long due = startNanos + (long) (offsetNanos / speed);
+                for (long wait = due - System.nanoTime(); wait > 0;
+                        wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            if (!client.hasCredit() || !client.allowFrame()) {
+                // still numbered, like frames a live server skips
+                sequence++;
+                continue;
+            }
+            long size = frameSize(i, frame);
+            bytes += client.sendFrame(Frame.newBuilder()
+                    .setJpeg(frame.getJpeg()).setSequence(++sequence)
+                    .setCaptureTimeMicros(frame.getCaptureTimeMicros())
+                    .setWidth((int) (size >>> 32)).setHeight((int) size)
+                    .build());
+            sent++;
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format(
+                "%s: %d frames in %.2fs (%.1f fps, %.2f MB/s)",
+                client.getName(), sent, seconds, sent / seconds,
+                bytes / seconds / 1e6));
+        return sequence;
+    }
+
+    private long frameSize(int index, RecordedFrame frame) {
+        long size = frameSizes.get(index);
+        if (size == 0) {
+            // racing clients read the same header, either result will do
+            size = jpegSize(frame.getJpeg());
+            frameSizes.set(index, size);
+        }
+        return size;
+    }
+
+    /**
+     * Reads the size from a JPEG's start-of-frame segment, without decoding
+     * it. Recordings don't store sizes, and the header is only a few markers
+     * in.
+     * 
+     * @return width in the high half and height in the low half, or 0 if
+     *         there's no start-of-frame before the image data
+     */
+    private static long jpegSize(ByteString jpeg) {
+        int pos = 2; // after SOI
+        while (pos + 4 <= jpeg.size()) {
+            if ((jpeg.byteAt(pos) & 0xFF) != 0xFF) {
+                return 0;
+            }
+            int marker = jpeg.byteAt(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if (marker == 0xD8 || marker == 0x01
+                    || (marker >= 0xD0 && marker <= 0xD7)) {
+                // no length
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // image data or end of image
+                return 0;
+            }
+            int length = readShort(jpeg, pos + 2);
+            boolean startOfFrame = marker >= 0xC0 && marker <= 0xCF
+                    && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (startOfFrame && pos + 9 <= jpeg.size()) {
+                long height = readShort(jpeg, pos + 5);
+                long width = readShort(jpeg, pos + 7);
+                return width << 32 | height;
+            }
+            pos += 2 + length;
+        }
+        return 0;
+    }
+
+    private static int readShort(ByteString bytes, int index) {
+        return (bytes.byteAt(index) & 0xFF) << 8
+                | (bytes.byteAt(index + 1) & 0xFF);
+    }
+
+}
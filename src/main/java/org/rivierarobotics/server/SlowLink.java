@@ -0,0 +1,177 @@
+/*
+ * This file is part of vision-client-2017, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Team5818 <https://github.com/Team5818>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rivierarobotics.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.rivierarobotics.LoggerUtil;
+import org.slf4j.Logger;
+
+/**
+ * Stand-in for a slow field link between a server and its clients. Forwards
+ * each connection to the server, passing server to client traffic on at a
+ * capped rate, so a server sending faster than that backs up in the socket
+ * buffers the way it does on a congested radio link. Client to server
+ * traffic passes on untouched.
+ */
+public final class SlowLink {
+
+    private static final Logger LOGGER = LoggerUtil.callingClassLogger();
+
+    private static final int DEFAULT_PORT = 5801;
+    private static final int CHUNK_SIZE = 4096;
+    /**
+     * Longest an idle link saves up its rate for, so it can't burst after a
+     * pause.
+     */
+    private static final long MAX_IDLE_CREDIT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static void usage() {
+        System.err.println("usage: SlowLink --to HOST:PORT [--port N]"
+                + " [--bind ADDRESS] [--rate KB/s]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        String bind = "localhost";
+        String[] to = null;
+        long rate = 1000;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--to":
+                        to = args[++i].split(":", 2);
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--bind":
+                        bind = args[++i];
+                        break;
+                    case "--rate":
+                        rate = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            usage();
+        }
+        if (to == null || to.length != 2 || rate <= 0) {
+            usage();
+        }
+        String host = to[0];
+        int serverPort = 0;
+        try {
+            serverPort = Integer.parseInt(to[1]);
+        } catch (NumberFormatException e) {
+            usage();
+        }
+
+        long bytesPerSecond = rate * 1024;
+        try (ServerSocket socket =
+                new ServerSocket(port, 50, InetAddress.getByName(bind))) {
+            System.out.println(String.format(
+                    "Linking %s to %s:%d at %d KB/s",
+                    socket.getLocalSocketAddress(), host, serverPort, rate));
+            while (true) {
+                Socket client = socket.accept();
+                Socket server;
+                try {
+                    server = new Socket(host, serverPort);
+                } catch (IOException e) {
+                    LOGGER.warn("Could not reach the server", e);
+                    client.close();
+                    continue;
+                }
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                System.out.println(
+                        "Linked " + client.getRemoteSocketAddress());
+                startPipe(server, client, bytesPerSecond);
+                startPipe(client, server, 0);
+            }
+        }
+    }
+
+    /**
+     * Copies everything from {@code from} to {@code to} on a new thread,
+     * closing both when either side closes.
+     * 
+     * @param bytesPerSecond
+     *            - 0 for no limit
+     */
+    private static void startPipe(Socket from, Socket to,
+            long bytesPerSecond) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long due = System.nanoTime();
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    if (bytesPerSecond == 0) {
+                        continue;
+                    }
+                    due = Math.max(due,
+                            System.nanoTime() - MAX_IDLE_CREDIT_NANOS)
+                            + TimeUnit.SECONDS.toNanos(read) / bytesPerSecond;
+                    for (long wait = due - System.nanoTime(); wait > 0;
+                            wait = due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            } catch (IOException e) {
+                // one side went away
+            } finally {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }, "SlowLink " + from.getRemoteSocketAddress());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing link", e);
+        }
+    }
+
+}